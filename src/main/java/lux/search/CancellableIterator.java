@@ -0,0 +1,57 @@
+package lux.search;
+
+import lux.solr.CancellationToken;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Wraps a search or terms iterator over the local index, checking for cancellation before retrieving
+ * each item.
+ */
+class CancellableIterator<T extends Item> implements SequenceIterator<T> {
+
+    private final SequenceIterator<T> base;
+    private final CancellationToken token;
+
+    CancellableIterator (SequenceIterator<T> base, CancellationToken token) {
+        this.base = base;
+        this.token = token;
+    }
+
+    @Override
+    public T next() throws XPathException {
+        token.check();
+        return base.next();
+    }
+
+    @Override
+    public T current() {
+        return base.current();
+    }
+
+    @Override
+    public int position() {
+        return base.position();
+    }
+
+    @Override
+    public void close() {
+        base.close();
+    }
+
+    @Override
+    public SequenceIterator<T> getAnother() throws XPathException {
+        return new CancellableIterator<T>(base.getAnother(), token);
+    }
+
+    @Override
+    public int getProperties() {
+        return 0;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -14,6 +14,7 @@ import net.sf.saxon.om.Item;
 import net.sf.saxon.om.LazySequence;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.EmptySequence;
@@ -43,10 +44,19 @@ public class SolrSearchService extends LuceneSearchService {
     
     @Override
     public Sequence search(Item queryArg, String[] sortCriteria, int start) throws XPathException {
+        context.getCancellationToken().check();
         if (isDistributed()) {
             return new LazySequence(doCloudSearch(queryArg, sortCriteria, start));
         }
-        return super.search(queryArg, sortCriteria, start);
+        return new LazySequence(cancellable (super.search(queryArg, sortCriteria, start).iterate()));
+    }
+
+    /**
+     * @return an iterator that checks for cancellation before retrieving each item
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private SequenceIterator cancellable (SequenceIterator iterator) {
+        return new CancellableIterator(iterator, context.getCancellationToken());
     }
 
     private boolean isDistributed() {
@@ -71,6 +81,7 @@ public class SolrSearchService extends LuceneSearchService {
 
     @Override
     public long count(Item queryArg) throws XPathException {
+        context.getCancellationToken().check();
         if (isDistributed()) {
             return doCloudSearch (queryArg, null, 0).count();
         }
@@ -79,7 +90,7 @@ public class SolrSearchService extends LuceneSearchService {
 
     @Override
     public Sequence key(FieldDefinition field, NodeInfo node) throws XPathException {
-        SolrDocument solrDoc = (SolrDocument) node.getDocumentRoot().getUserData(SolrDocument.class.getName());
+        SolrDocument solrDoc = context.getSolrDocument(node.getDocumentRoot());
         if (solrDoc != null) {
             return getFieldValue (solrDoc, field);
         }
@@ -148,13 +159,14 @@ public class SolrSearchService extends LuceneSearchService {
     @Override
     public Sequence terms(String fieldName, String startValue) throws XPathException {
         Term term = new Term(fieldName, startValue);
+        context.getCancellationToken().check();
         if (isDistributed()) {
             // distributed query
             return new LazySequence (new SolrTermsIterator(getEvaluator(), term));
         }
         // access local index
         try {
-            return new LazySequence(new TermsIterator(getEvaluator(), term));
+            return new LazySequence(cancellable(new TermsIterator(getEvaluator(), term)));
         } catch (IOException e) {
             throw new XPathException(e);
         }        
@@ -11,6 +11,7 @@ import net.sf.saxon.value.StringValue;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.index.Term;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.TermsParams;
@@ -45,7 +46,9 @@ class SolrTermsIterator implements SequenceIterator<AtomicValue> {
 
     @Override
     public AtomicValue next() throws XPathException {
+        SolrQueryContext context = (SolrQueryContext) eval.getQueryContext();
         for (;;) {
+            context.getCancellationToken().check();
             if (response == null) {
                 getMoreTerms ();
             }
@@ -85,8 +88,12 @@ class SolrTermsIterator implements SequenceIterator<AtomicValue> {
         params.add(TermsParams.TERMS_SORT, TermsParams.TERMS_SORT_INDEX);
         params.add(TermsParams.TERMS_LIMIT, Integer.toString(100));
         params.add("distrib", "true");
-        params.add(ShardParams.SHARDS, StringUtils.join(xqueryComponent.getCurrentShards(), ","));
+        params.add(ShardParams.SHARDS, StringUtils.join(((SolrQueryContext) eval.getQueryContext()).getShards(), ","));
         params.add(ShardParams.SHARDS_QT, "/terms"); // this gets passed to the shards to tell them what the request is
+        long timeAllowed = ((SolrQueryContext) eval.getQueryContext()).getCancellationToken().getTimeRemaining();
+        if (timeAllowed > 0) {
+            params.add(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
+        }
         SolrQueryRequest req = new CloudQueryRequest(xqueryComponent.getCore(), params, null);
         response = new SolrQueryResponse();
         termsHandler.handleRequest(req, response);
@@ -0,0 +1,201 @@
+package lux.solr;
+
+import lux.Evaluator;
+import net.sf.saxon.expr.Atomizer;
+import net.sf.saxon.expr.CardinalityChecker;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FunctionCall;
+import net.sf.saxon.expr.ItemChecker;
+import net.sf.saxon.expr.SlashExpression;
+import net.sf.saxon.expr.UnaryExpression;
+import net.sf.saxon.expr.sort.DocumentSorter;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ShardHandler;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.request.SolrQueryRequest;
+
+/**
+ * Evaluates a distributed query of the form <code>agg(lux:search(...)/path)</code>, where agg is one of
+ * count, sum, min, max, exists or empty, by having each shard evaluate the entire query over its own 
+ * documents, and combining the shards' results, rather than retrieving all the matching documents and
+ * evaluating the query on the coordinating node.  This is only valid when the aggregated sequence is
+ * derived document-by-document from search results, so the argument of the aggregate must be a search, 
+ * or a path starting from a search, without any positional filters, and the search may not specify a
+ * start position.  Enabled by the request parameter lux.pushdown=true.
+ */
+public class AggregatePushdown {
+
+    public static final String LUX_PUSHDOWN = "lux.pushdown";
+
+    enum Aggregate {
+        COUNT, SUM, MIN, MAX, EXISTS, EMPTY
+    }
+
+    private final Aggregate aggregate;
+
+    private AggregatePushdown (Aggregate aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    /**
+     * @param executable a compiled query
+     * @return a pushdown for the query, or null if the query can't be pushed down to the shards
+     */
+    public static AggregatePushdown analyze (XQueryExecutable executable) {
+        Expression expr = executable.getUnderlyingCompiledQuery().getExpression();
+        if (! (expr instanceof FunctionCall)) {
+            return null;
+        }
+        FunctionCall call = (FunctionCall) expr;
+        StructuredQName name = call.getFunctionName();
+        if (name == null || ! NamespaceConstant.FN.equals(name.getURI()) || call.getNumberOfArguments() != 1) {
+            return null;
+        }
+        Aggregate aggregate;
+        try {
+            aggregate = Aggregate.valueOf(name.getLocalPart().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (! isDerivedFromSearch(call.getArguments()[0])) {
+            return null;
+        }
+        return new AggregatePushdown(aggregate);
+    }
+
+    private static boolean isDerivedFromSearch (Expression expr) {
+        for (;;) {
+            if (expr instanceof FunctionCall) {
+                FunctionCall call = (FunctionCall) expr;
+                StructuredQName name = call.getFunctionName();
+                // lux:search($query, $sort): a start position would be applied by every shard
+                return name != null && Evaluator.LUX_NAMESPACE.equals(name.getURI()) && name.getLocalPart().equals("search")
+                        && call.getNumberOfArguments() <= 2;
+            }
+            if (expr instanceof SlashExpression) {
+                // the steps are evaluated relative to each document
+                expr = ((SlashExpression) expr).getStart();
+            } else if (expr instanceof Atomizer || expr instanceof DocumentSorter || 
+                    expr instanceof CardinalityChecker || expr instanceof ItemChecker) {
+                // atomization, sorting into document order, and type checking apply to each item
+                // independently; other unary expressions, like [1], select from the whole sequence
+                expr = ((UnaryExpression) expr).getBaseExpression();
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sends the query to each of the shards, to be evaluated locally, and combines their results.
+     * @param req the request
+     * @param shards the shards participating in the request
+     * @param query the query
+     * @param timeAllowed the time remaining, in ms, or -1 if there is no limit
+     * @param xpathResults receives the combined result
+     * @return an error message, if any of the shards reported an error, or else null
+     */
+    String evaluate (SolrQueryRequest req, String[] shards, String query, long timeAllowed, NamedList<Object> xpathResults) {
+        ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+        String path = (String) req.getContext().get("path");
+        params.set(CommonParams.QT, path != null ? path : "/xquery");
+        params.set(CommonParams.Q, query);
+        params.set("distrib", false);
+        params.set(ShardParams.IS_SHARD, true);
+        params.set(LUX_PUSHDOWN, false);
+        params.remove(ShardParams.SHARDS);
+        params.remove(CommonParams.START);
+        params.remove(CommonParams.ROWS);
+        if (timeAllowed > 0) {
+            params.set(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
+        }
+        ShardHandler shardHandler = req.getCore().getCoreDescriptor().getCoreContainer().getShardHandlerFactory().getShardHandler();
+        ShardRequest sreq = new ShardRequest();
+        sreq.purpose = ShardRequest.PURPOSE_PRIVATE;
+        sreq.actualShards = shards;
+        sreq.params = params;
+        for (String shard : shards) {
+            shardHandler.submit(sreq, shard, new ModifiableSolrParams(params));
+        }
+        ShardResponse completed = shardHandler.takeCompletedOrError();
+        if (completed == null) {
+            return null;
+        }
+        if (completed.getException() != null) {
+            shardHandler.cancelAll();
+            return "An error occurred on shard " + completed.getShard() + ": " + completed.getException().getMessage();
+        }
+        String type = null;
+        Object result = null;
+        for (ShardResponse srsp : completed.getShardRequest().responses) {
+            NamedList<Object> response = srsp.getSolrResponse().getResponse();
+            Object error = response.get("xpath-error");
+            if (error != null) {
+                return error.toString();
+            }
+            NamedList<?> shardResults = (NamedList<?>) response.get("xpath-results");
+            if (shardResults == null || shardResults.size() == 0) {
+                // the empty sequence: min or max of no values
+                continue;
+            }
+            Object value = shardResults.getVal(0);
+            if (result == null) {
+                result = value;
+                type = shardResults.getName(0);
+            } else {
+                Object previous = result;
+                result = combine (previous, value);
+                if (result == value || (result instanceof Double && ! (previous instanceof Double))) {
+                    type = shardResults.getName(0);
+                }
+            }
+        }
+        if (result != null) {
+            xpathResults.add(type, result);
+        }
+        return null;
+    }
+
+    private Object combine (Object a, Object b) {
+        switch (aggregate) {
+        case COUNT:
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        case SUM:
+            if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+                return ((Number) a).doubleValue() + ((Number) b).doubleValue();
+            }
+            return ((Number) a).longValue() + ((Number) b).longValue();
+        case MIN:
+            return compare (a, b) <= 0 ? a : b;
+        case MAX:
+            return compare (a, b) >= 0 ? a : b;
+        case EXISTS:
+            return ((Boolean) a) || ((Boolean) b);
+        case EMPTY:
+            return ((Boolean) a) && ((Boolean) b);
+        default:
+            throw new IllegalStateException ("unknown aggregate: " + aggregate);
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static int compare (Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        return ((Comparable) a).compareTo(b);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -1,12 +1,9 @@
 package lux.solr;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
@@ -30,7 +27,7 @@ import org.slf4j.LoggerFactory;
  */
 public class AppServerComponent extends XQueryComponent {
 
-    private static final String RESOURCE_SCHEME = "resource:";
+    private static final String RESOURCE_SCHEME = ModuleCache.RESOURCE_SCHEME;
     private static final String CONTEXT_SCHEME = "context:";
 
     @Override
@@ -38,7 +35,7 @@ public class AppServerComponent extends XQueryComponent {
         SolrQueryRequest req = rb.req;
         SolrParams params = req.getParams();            
         if (rb.getQueryString() == null) {
-            queryPath = rb.req.getParams().get(LUX_XQUERY);
+            String queryPath = rb.req.getParams().get(LUX_XQUERY);
             if (! StringUtils.isBlank(queryPath)) {
                 String baseUri;
                 String contextBase = (String) params.get("lux.serverBaseUri");
@@ -67,18 +64,16 @@ public class AppServerComponent extends XQueryComponent {
                 	baseUri = contextBase + baseUri.substring(CONTEXT_SCHEME.length());
                 }
                 String contents = null;
+                ModuleCache moduleCache = getSolrIndexConfig().getModuleCache();
                 if (resourceBase != null) {
-                    InputStream in = AppServerComponent.class.getResourceAsStream(resourceBase + queryPath);
                 	queryPath = baseUri + queryPath;
-                    if (in == null) {
+                    try {
+                        contents = moduleCache.get(queryPath);
+                    } catch (IOException e) {
+                        LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + queryPath, e);
+                    }
+                    if (contents == null) {
                         throw new SolrException (ErrorCode.NOT_FOUND, queryPath + " not found");
-                    } else {
-                        try {
-                            contents = IOUtils.toString(in);
-                        } catch (IOException e) {
-                            LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + queryPath, e);
-                        }
-                        IOUtils.closeQuietly(in);
                     }
                 } else {
                     // url provided with scheme
@@ -88,31 +83,17 @@ public class AppServerComponent extends XQueryComponent {
                     if (scheme.equals("lux")) {
                         // TODO implement lux: uri resolution
                     	throw new SolrException (ErrorCode.NOT_FOUND, queryPath + " not found (actually lux: scheme is not implemented)");
-                    } else {
-                        InputStream in = null;
+                    } else if (scheme.equals("file")) {
                         try {
-                            if (url.getProtocol().equals("file")) {
-                                File f = new File(url.getPath());
-                                if (!f.exists()) {
-                                    throw new SolrException (ErrorCode.NOT_FOUND, f + " not found");
-                                }
-                                if (f.isDirectory() || ! f.canRead()) {
-                                    throw new SolrException (ErrorCode.FORBIDDEN, "access to " + f + " denied by rule");
-                                }
-                                in = new FileInputStream(f);
-                            } else {
-                                // in = url.openStream();
-                                LoggerFactory.getLogger(AppServerComponent.class).error("URL scheme not supported: " + url.getProtocol());
-                            }
-                            contents = IOUtils.toString(in);
+                            contents = moduleCache.get(queryPath);
                         } catch (IOException e) {
                         	LoggerFactory.getLogger(AppServerComponent.class).error("An error occurred while reading " + url, e);
                         }
-                        if (in != null) {
-                            IOUtils.closeQuietly(in);
-                        }
+                    } else {
+                        LoggerFactory.getLogger(AppServerComponent.class).error("URL scheme not supported: " + url.getProtocol());
                     }
                 }
+                getQueryContext(req).setQueryPath(queryPath);
                 rb.setQueryString(contents);
             }
         }
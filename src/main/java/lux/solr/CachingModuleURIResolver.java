@@ -0,0 +1,116 @@
+package lux.solr;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.lib.ModuleURIResolver;
+import net.sf.saxon.trans.XPathException;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+
+/**
+ * Resolves library modules imported by queries (<code>import module ... at ...</code>) using
+ * the core's {@link ModuleCache}, so that importing a module doesn't require reading it from
+ * the file system (or the classpath) for every compilation.  Locations that resolve to anything
+ * other than file: or resource: URIs are passed on to the resolver that was previously in effect.
+ * While a query is being compiled, the resolver records the modules it imports, so that the compiled
+ * query can be discarded when any of them changes.
+ */
+public class CachingModuleURIResolver implements ModuleURIResolver {
+
+    private final ModuleCache moduleCache;
+    private final ModuleURIResolver delegate;
+
+    // the modules imported by the query being compiled on each thread, with their modification times
+    private final ThreadLocal<Map<String,Long>> imports;
+
+    CachingModuleURIResolver (ModuleCache moduleCache, ModuleURIResolver delegate) {
+        this.moduleCache = moduleCache;
+        this.delegate = delegate;
+        imports = new ThreadLocal<Map<String,Long>>();
+    }
+
+    /**
+     * Begin recording the modules resolved on the current thread.
+     */
+    void startRecording () {
+        imports.set(new HashMap<String, Long>());
+    }
+
+    /**
+     * Stop recording the modules resolved on the current thread.
+     * @return the URLs of the modules resolved on the current thread since recording began, mapped to their
+     * modification times.
+     */
+    Map<String,Long> stopRecording () {
+        Map<String,Long> recorded = imports.get();
+        imports.remove();
+        return recorded;
+    }
+
+    @Override
+    public StreamSource[] resolve(String moduleURI, String baseURI, String[] locations) throws XPathException {
+        if (locations == null || locations.length == 0) {
+            return delegate.resolve(moduleURI, baseURI, locations);
+        }
+        StreamSource[] sources = new StreamSource[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            String url = resolveLocation (baseURI, locations[i]);
+            if (url == null) {
+                return delegate.resolve(moduleURI, baseURI, locations);
+            }
+            ModuleCache.Module module;
+            try {
+                module = moduleCache.getModule(url);
+            } catch (IOException e) {
+                throw new XPathException ("An error occurred while reading " + url, e);
+            } catch (SolrException e) {
+                if (e.code() == ErrorCode.NOT_FOUND.code) {
+                    // let Saxon report the missing module in its usual way
+                    return null;
+                }
+                throw new XPathException (e.getMessage(), e);
+            }
+            if (module == null) {
+                return null;
+            }
+            Map<String,Long> recorded = imports.get();
+            if (recorded != null) {
+                recorded.put(url, module.getLastModified());
+            }
+            sources[i] = new StreamSource (new StringReader(module.getText()), url);
+        }
+        return sources;
+    }
+
+    private String resolveLocation (String baseURI, String location) {
+        String url;
+        try {
+            if (baseURI == null) {
+                url = new URI(location).toString();
+            } else {
+                url = new URI(baseURI).resolve(location).toString();
+            }
+        } catch (URISyntaxException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (url.startsWith(ModuleCache.RESOURCE_SCHEME) || url.startsWith("file:")) {
+            return url;
+        }
+        return null;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,58 @@
+package lux.solr;
+
+/**
+ * Signals that a query evaluation should stop because its time allowance has run out.  The token
+ * is held by the {@link SolrQueryContext}, and is checked by the operations that retrieve documents
+ * and terms, so that a long-running evaluation is abandoned shortly after its deadline passes, even
+ * if it has not yet produced any results.
+ */
+public class CancellationToken {
+
+    private final long deadline;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param startTime the time (in ms since the epoch) at which the request began
+     * @param timeAllowed the number of milliseconds the request is allowed to run; if not positive,
+     * the request is never cancelled.
+     */
+    public CancellationToken (long startTime, long timeAllowed) {
+        deadline = timeAllowed > 0 ? startTime + timeAllowed : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return whether the evaluation has passed its deadline
+     */
+    public boolean isCancelled () {
+        if (!cancelled && deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline) {
+            cancelled = true;
+        }
+        return cancelled;
+    }
+
+    /**
+     * @throws QueryCancelledException if the evaluation has passed its deadline
+     */
+    public void check () {
+        if (isCancelled()) {
+            throw new QueryCancelledException ();
+        }
+    }
+
+    /**
+     * @return the number of milliseconds remaining before the deadline, at least 1, or -1 if there is
+     * no deadline.  This is suitable for passing as timeAllowed to a sub-request.
+     */
+    public long getTimeRemaining () {
+        if (deadline == Long.MAX_VALUE) {
+            return -1;
+        }
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
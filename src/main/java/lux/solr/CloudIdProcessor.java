@@ -19,14 +19,18 @@ import org.apache.solr.update.processor.UpdateRequestProcessor;
  * Note: we can't use URI for this purpose since we need to be able to translate our ordering
  * field into a long value for Saxon to use as its document number, since that it is what *it*
  * uses for document order.
+ * 
+ * Ids are allocated by a {@link DocIdAllocator} shared by all the processors for a core.
  */
 public class CloudIdProcessor extends UpdateRequestProcessor {
 
     private final String idFieldName;
     private final String uriFieldName;
+    private final DocIdAllocator allocator;
     
-    public CloudIdProcessor (SolrIndexConfig config, SolrQueryRequest req, UpdateRequestProcessor next) {
+    public CloudIdProcessor (SolrIndexConfig config, DocIdAllocator allocator, SolrQueryRequest req, UpdateRequestProcessor next) {
         super(next);
+        this.allocator = allocator;
         IndexConfiguration indexConfig = config.getIndexConfig();
         idFieldName = indexConfig.getFieldName(FieldRole.ID);
         uriFieldName = indexConfig.getFieldName(FieldRole.URI);
@@ -38,13 +42,7 @@ public class CloudIdProcessor extends UpdateRequestProcessor {
         
         String uri = (String) solrInputDocument.getFieldValue(uriFieldName);
         if (uri != null) {
-            // we actually only need about 42 bits to count up to about to 2070, so use the remaining 22
-            // for some bits from a uri hash to make this (more likely to be) globally unique.
-            long t = System.currentTimeMillis() << 22;
-            long hashCode = uri.hashCode() & 0x2fffff;
-            // would the high-order bits be more random?
-            long luxDocId = t | hashCode;
-            solrInputDocument.addField(idFieldName, luxDocId);
+            solrInputDocument.addField(idFieldName, allocator.next());
         }
         
         if (next != null) {
@@ -1,26 +1,174 @@
 package lux.solr;
 
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.apache.solr.cloud.CloudDescriptor;
+import org.apache.solr.cloud.ZkController;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.cloud.ClusterState;
+import org.apache.solr.common.cloud.Replica;
+import org.apache.solr.common.cloud.Slice;
+import org.apache.solr.common.cloud.SolrZkClient;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
 import org.apache.solr.util.plugin.SolrCoreAware;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class CloudIdProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
 
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    // the parent of the znodes that record the node ids claimed by the cores of each collection
+    private static final String NODE_ID_PATH = "/lux/docid-nodes/";
+
+    // a claim held by a core that is not in the cluster state is only taken over once it is this old,
+    // since the cluster state may not yet list a core that was created very recently
+    private static final long CLAIM_EXPIRY_MS = 10 * 60 * 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(CloudIdProcessorFactory.class);
+
     SolrIndexConfig indexConfig;
 
-    /** Called when each core is initialized; we ensure that Lux fields are configured.
+    DocIdAllocator allocator;
+
+    private Integer configuredNodeId;
+
+    /**
+     * Recognizes the argument node-id: the identifier, in [0, {@link DocIdAllocator#MAX_NODE}], that
+     * distinguishes the lux_docids allocated by this core from those allocated by the other cores of its
+     * collection.  Each core must be configured with a different value.  If it is not set, a core in a
+     * SolrCloud claims an identifier that no other core of its collection holds, by creating a znode
+     * under /lux/docid-nodes/[collection] in ZooKeeper.
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        if (args != null) {
+            Object nodeId = args.get("node-id");
+            if (nodeId != null) {
+                configuredNodeId = Integer.valueOf(nodeId.toString());
+            }
+        }
+    }
+
+    /** Called when each core is initialized; we ensure that Lux fields are configured, and
+     * identify the core for the purpose of allocating ids.
      */
     @Override
     public void inform(SolrCore core) {
         indexConfig = SolrIndexConfig.registerIndexConfiguration(core);
+        CloudDescriptor cloudDescriptor = core.getCoreDescriptor().getCloudDescriptor();
+        int nodeId;
+        if (configuredNodeId != null) {
+            nodeId = configuredNodeId;
+        } else if (cloudDescriptor == null) {
+            nodeId = 0;
+        } else {
+            nodeId = claimNodeId (core.getCoreDescriptor().getCoreContainer().getZkController(), cloudDescriptor);
+        }
+        try {
+            allocator = new DocIdAllocator(nodeId);
+        } catch (IllegalArgumentException e) {
+            throw new SolrException (ErrorCode.SERVER_ERROR, "unable to allocate lux docids: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Claims a node id for the core that is not held by any other core of its collection.  If that fails,
+     * the id derived from its core node name is used, and a warning is logged, since it may collide with
+     * that of another core.
+     */
+    private static int claimNodeId (ZkController zkController, CloudDescriptor cloudDescriptor) {
+        String collection = cloudDescriptor.getCollectionName();
+        String coreNodeName = cloudDescriptor.getCoreNodeName();
+        int preferred = DocIdAllocator.nodeIdFor(coreNodeName);
+        try {
+            HashSet<String> coreNodeNames = getCoreNodeNames (zkController.getClusterState(), collection);
+            int nodeId = claimNodeId (zkController.getZkClient(), NODE_ID_PATH + collection, coreNodeName, preferred, coreNodeNames);
+            if (nodeId >= 0) {
+                return nodeId;
+            }
+            logger.warn("every lux docid node id of collection " + collection + " is held by another core; " + coreNodeName + " is using " + preferred);
+        } catch (KeeperException e) {
+            logger.warn("failed to claim a lux docid node id for " + coreNodeName + "; using " + preferred, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while claiming a lux docid node id for " + coreNodeName + "; using " + preferred);
+        }
+        return preferred;
+    }
+
+    /**
+     * Each claimed id is recorded in a znode named by the id, whose data is the name of the core holding it.
+     * Ids are tried in turn, beginning with the preferred one.  An id whose znode can't be created (because
+     * another core holds it) is taken over if the holder is no longer part of the collection.
+     * @return the id claimed, or -1 if every id is held by a core of the collection
+     */
+    static int claimNodeId (SolrZkClient zkClient, String path, String coreNodeName, int preferred, Collection<String> coreNodeNames)
+            throws KeeperException, InterruptedException {
+        byte[] name = coreNodeName.getBytes(UTF8);
+        zkClient.makePath(path, false, true);
+        // a core that is restarted keeps the id it claimed before
+        for (String child : zkClient.getChildren(path, null, true)) {
+            if (coreNodeName.equals(new String(zkClient.getData(path + '/' + child, null, null, true), UTF8))) {
+                return Integer.parseInt(child);
+            }
+        }
+        for (int i = 0; i <= DocIdAllocator.MAX_NODE; i++) {
+            int nodeId = (preferred + i) & DocIdAllocator.MAX_NODE;
+            String idPath = path + '/' + nodeId;
+            try {
+                zkClient.create(idPath, name, CreateMode.PERSISTENT, true);
+                return nodeId;
+            } catch (KeeperException.NodeExistsException e) {
+                Stat stat = new Stat();
+                String holder = new String(zkClient.getData(idPath, null, stat, true), UTF8);
+                if (holder.equals(coreNodeName)) {
+                    // created by a retry of our own create
+                    return nodeId;
+                }
+                if (coreNodeNames.contains(holder) || System.currentTimeMillis() - stat.getMtime() < CLAIM_EXPIRY_MS) {
+                    continue;
+                }
+                try {
+                    zkClient.setData(idPath, name, stat.getVersion(), true);
+                    logger.info("lux docid node id " + nodeId + " passes from " + holder + " to " + coreNodeName);
+                    return nodeId;
+                } catch (KeeperException.BadVersionException bve) {
+                    // another core took it over first
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static HashSet<String> getCoreNodeNames (ClusterState clusterState, String collection) {
+        HashSet<String> names = new HashSet<String>();
+        Collection<Slice> slices = clusterState.getSlices(collection);
+        if (slices != null) {
+            for (Slice slice : slices) {
+                for (Replica replica : slice.getReplicas()) {
+                    names.add(replica.getName());
+                }
+            }
+        }
+        return names;
     }
 
     @Override
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-        return new CloudIdProcessor (indexConfig, req, next);
+        return new CloudIdProcessor (indexConfig, allocator, req, next);
     }
 
 }
@@ -1,6 +1,21 @@
 package lux.solr;
 
+import java.io.Closeable;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import lux.Evaluator;
 import lux.SearchIteratorBase;
@@ -13,6 +28,7 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.SortField.Type;
@@ -22,34 +38,75 @@ import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchHandler;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SortSpec;
 
 /**
  * 
  * Perform distributed XQuery searches.  We mimic lazy evaluation by maintaining an iterator
- * that re-issues requests when its local cache is exhausted.  Note: deep paging may be quite expensive
- * since *all* results starting with the first must be retrieved for each page!  
+ * that re-issues requests when its local cache is exhausted.  
  * 
- * TODO: We could optimize better if we kept track of per-shard positions.  To do that we'd have to know which shard each result came from.
- * This info is held in ResponseBuilder.resultIds, which is a map from id to ShardDoc; each ShardDoc has
- * a shard id.  We can count the # of docs from each shard and calculate a position from that.
+ * Since a distributed search must retrieve *all* the results preceding the requested page from every shard,
+ * paging with an increasing start position becomes quadratically expensive.  Instead, after the first batch,
+ * each request carries a filter that restricts the results to those sorting after the last result seen so far,
+ * in the manner of a cursor, so that every batch begins at start=0 on every shard.  This relies on the
+ * sort values of the last result being available as stored fields; since the results are always sorted by
+ * lux_docid, which is unique, last, this defines a strict total order.  When a sort value is unavailable, or the 
+ * position of documents missing a value can't be determined, we fall back to paging by start position.
+ * 
+ * Batches begin small, so that queries that only need the first few results are cheap, and double in size
+ * as long as the consumer continues to pull results, up to a limit derived from the average size of the
+ * documents retrieved so far and the component's batch byte budget.  While the current batch is being
+ * consumed, the next batch is fetched in the background using the component's prefetch executor, if any.
+ * The prefetch only begins once the consumer has read past the first document of the current batch, so
+ * that consumers that stop after one document (like exists() or [1]) don't pay for a batch they never
+ * read, and it is cancelled if the iterator is closed, or the request ends, before it is needed.
+ * 
+ * With lux.lazyFetch=true, the search retrieves every field except the document itself, along with the
+ * shard that holds each document.  Document bodies are then retrieved from their shards, a few at a 
+ * time, only when the iteration reaches them, and only if they are not already in the {@link DocumentCache}.
+ * This saves transferring documents that are never reached, as when a query stops after finding a match.
  */
 public class CloudSearchIterator extends SearchIteratorBase {
 
     public enum QueryParserType {
         CLASSIC, XML
     }
+
+    /** request parameter enabling the retrieval of document bodies only as they are needed */
+    public static final String LUX_LAZY_FETCH = "lux.lazyFetch";
+
+    // the pseudo-field that returns the shard a document came from
+    private static final String SHARD_FIELD = "[shard]";
     
     private int limit; // = solr 'rows'
+    private int initialLimit;
     private SolrQueryResponse response;
+    private volatile Future<SolrQueryResponse> prefetch;
+    // the position of the first document in the prefetched response
+    private int prefetchStart;
+    // whether there are results following the current batch
+    private boolean morePending;
+    private boolean closeHookAdded;
     private final String query;
     private final QueryParserType queryParser;
     private final String xmlFieldName;
     private final String uriFieldName;
     private final String idFieldName;
+    private final boolean lazyFetch;
     private String[] effectiveCriteria;
+    // the position of the first document in the current response
+    private int batchStart;
+    // a filter selecting the documents that sort after the last document retrieved, or null
+    private String cursorFilter;
+    private boolean cursorEnabled;
     
     /**
      * Initialize the iterator
@@ -62,12 +119,16 @@ public class CloudSearchIterator extends SearchIteratorBase {
     public CloudSearchIterator (Evaluator eval, String query, QueryParserType queryParser, String[] sortCriteria, int start1) {
         super (eval, sortCriteria, start1);
         this.limit = 20;
+        this.initialLimit = limit;
         this.queryParser = queryParser;
         this.query = query;
         IndexConfiguration indexConfig = eval.getCompiler().getIndexConfiguration();
         this.xmlFieldName = indexConfig.getFieldName(FieldRole.XML_STORE);
         this.uriFieldName = indexConfig.getFieldName(FieldRole.URI);
         this.idFieldName = indexConfig.getFieldName(FieldRole.ID);
+        this.cursorEnabled = true;
+        SolrQueryContext context = (SolrQueryContext) eval.getQueryContext();
+        this.lazyFetch = context.getSolrQueryRequest().getParams().getBool(LUX_LAZY_FETCH, false);
     }
 
     @Override
@@ -77,8 +138,14 @@ public class CloudSearchIterator extends SearchIteratorBase {
     
     public long count() {
         if (response == null) {
+            int batchSize = limit;
             this.limit = 0;
             doCloudSearch();
+            this.limit = batchSize;
+            SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
+            if (docs != null) {
+                eval.getQueryStats().docCount += docs.getNumFound();
+            }
         }
         SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
         if (docs == null) {
@@ -89,15 +156,16 @@ public class CloudSearchIterator extends SearchIteratorBase {
 
     @Override
     public NodeInfo next() throws XPathException {
+        CancellationToken token = ((SolrQueryContext)eval.getQueryContext()).getCancellationToken();
         for (;;) {
+            token.check();
             if (response != null) {
                 SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
                 if (docs == null) {
                     return null;
                 }
-                // FIXME: test pagination I think there is a bug here if w/start > 0?
-                if (position < docs.getStart() + docs.size()) {
-                    SolrDocument doc = docs.get(position++ - (int) docs.getStart());
+                if (position < batchStart + docs.size()) {
+                    SolrDocument doc = docs.get(position++ - batchStart);
                     String uri = (String) doc.getFirstValue(uriFieldName);
                     Object oxml = doc.getFirstValue(xmlFieldName);
                     Long id = (Long) doc.getFirstValue(idFieldName);
@@ -105,34 +173,218 @@ public class CloudSearchIterator extends SearchIteratorBase {
                         // try to support migrating an old index?
                         throw new LuxException("This index has no lux docids: it cannot support Lux on Solr Cloud");
                     }
-                    String xml = (String) ((oxml instanceof String) ? oxml : null);
-                    byte [] bytes = (byte[]) ((oxml instanceof byte[]) ? oxml : null);
-                    XdmNode node = eval.getDocReader().createXdmNode(id, uri, xml, bytes);
+                    SolrIndexSearcher searcher = ((SolrQueryContext)eval.getQueryContext()).getSolrQueryRequest().getSearcher();
+                    XdmNode node = DocumentCache.get(searcher, id);
+                    if (node == null && oxml == null && lazyFetch) {
+                        fetchDocuments (docs, position - 1 - batchStart, searcher);
+                        oxml = doc.getFirstValue(xmlFieldName);
+                        if (oxml == null) {
+                            throw new LuxException("document " + uri + " was removed during the search");
+                        }
+                    }
+                    doc.removeFields(SHARD_FIELD);
+                    if (node == null) {
+                        String xml = (String) ((oxml instanceof String) ? oxml : null);
+                        byte [] bytes = (byte[]) ((oxml instanceof byte[]) ? oxml : null);
+                        node = eval.getDocReader().createXdmNode(id, uri, xml, bytes);
+                        DocumentCache.put(searcher, id, node);
+                    }
                     DocumentInfo docNode = node.getUnderlyingNode().getDocumentRoot();
-                    docNode.setUserData(SolrDocument.class.getName(), doc);
+                    // cached nodes are shared by all requests, so the fields go in this request's context
+                    doc.removeFields(xmlFieldName);
+                    ((SolrQueryContext)eval.getQueryContext()).setSolrDocument(docNode, doc);
+                    if (morePending && position - batchStart > 1) {
+                        startPrefetch ();
+                    }
                     return docNode;
-                } else if (position >= docs.getNumFound()) {
+                } else if (position >= batchStart + docs.getNumFound() - docs.getStart()) {
                     return null;
                 }
             }
-            doCloudSearch();
+            nextBatch();
+        }
+    }
+
+    /*
+     * Retrieve the next batch, either by waiting for the prefetched batch, or by searching.
+     */
+    private void nextBatch () {
+        morePending = false;
+        if (prefetch != null) {
+            response = awaitPrefetch ();
+            batchStart = prefetchStart;
+        } else {
+            advanceCursor ();
+            doCloudSearch ();
+        }
+        SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
+        if (docs == null) {
+            return;
+        }
+        eval.getQueryStats().docCount += docs.getNumFound();
+        if (docs.isEmpty()) {
+            return;
+        }
+        XQueryComponent xqueryComponent = ((SolrQueryContext)eval.getQueryContext()).getQueryComponent();
+        growLimit (docs, xqueryComponent.getCloudBatchBudget());
+        morePending = docs.size() < docs.getNumFound() - docs.getStart();
+    }
+
+    /*
+     * Start to prefetch the batch following the current one, if there is a prefetch executor.
+     */
+    private void startPrefetch () {
+        morePending = false;
+        XQueryComponent xqueryComponent = ((SolrQueryContext)eval.getQueryContext()).getQueryComponent();
+        ExecutorService executor = xqueryComponent.getPrefetchExecutor();
+        if (executor == null) {
+            return;
+        }
+        SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
+        int nextStart = batchStart + docs.size();
+        advanceCursor ();
+        final SolrQueryRequest req = createRequest (nextStart);
+        final SearchHandler searchHandler = xqueryComponent.getSearchHandler();
+        prefetchStart = nextStart;
+        prefetch = executor.submit(new Callable<SolrQueryResponse>() {
+            @Override
+            public SolrQueryResponse call() {
+                return search (searchHandler, req);
+            }
+        });
+        if (! closeHookAdded) {
+            // the iterator may be abandoned without being closed
+            SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+            if (requestInfo != null) {
+                requestInfo.addCloseHook(new Closeable() {
+                    @Override
+                    public void close() {
+                        cancelPrefetch ();
+                    }
+                });
+            }
+            closeHookAdded = true;
+        }
+    }
+
+    private void cancelPrefetch () {
+        Future<SolrQueryResponse> pending = prefetch;
+        if (pending != null) {
+            // don't interrupt a search that has begun: that could close the index files it is reading
+            pending.cancel(false);
+            prefetch = null;
+        }
+    }
+
+    @Override
+    public void close () {
+        cancelPrefetch ();
+        super.close();
+    }
+
+    private SolrQueryResponse awaitPrefetch () {
+        try {
+            return prefetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LuxException (e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new LuxException (e.getCause());
+        } finally {
+            prefetch = null;
+        }
+    }
+
+    // set the cursor to follow the last document in the current response
+    private void advanceCursor () {
+        if (response == null || ! cursorEnabled) {
+            return;
+        }
+        SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
+        if (docs != null && ! docs.isEmpty()) {
+            cursorFilter = makeCursorFilter (docs.get(docs.size() - 1));
+            cursorEnabled = cursorFilter != null;
         }
     }
+
+    // double the batch size, up to the number of documents of the average size seen so far that fit in the budget
+    private void growLimit (SolrDocumentList docs, long budget) {
+        long bytes = 0;
+        for (SolrDocument doc : docs) {
+            Object xml = doc.getFirstValue(xmlFieldName);
+            if (xml instanceof String) {
+                bytes += ((String) xml).length() * 2;
+            } else if (xml instanceof byte[]) {
+                bytes += ((byte[]) xml).length;
+            }
+        }
+        if (lazyFetch) {
+            // the bodies are fetched separately; count the documents' other fields as small
+            bytes += docs.size() * 1024L;
+        }
+        long maxLimit = Math.max(initialLimit, budget * docs.size() / Math.max(bytes, 1));
+        limit = (int) Math.min(Math.min((long) limit * 2, maxLimit), Integer.MAX_VALUE);
+    }
     
     /* Make a new query request, using this.query, start calculated based on the passed-in responseBuilder
     sorting based on sortCriteria, and fields=lux_xml.  Also: if rb asks for debug, pass that along
     */
     private void doCloudSearch () {
-        ResponseBuilder origRB = ((SolrQueryContext)eval.getQueryContext()).getResponseBuilder();
+        response = search (((SolrQueryContext)eval.getQueryContext()).getQueryComponent().getSearchHandler(), createRequest (position));
+        batchStart = position;
+    }
+
+    /* Create a request for the batch beginning at the given position */
+    private SolrQueryRequest createRequest (int batchPosition) {
+        SolrQueryContext context = (SolrQueryContext)eval.getQueryContext();
+        ResponseBuilder origRB = context.getResponseBuilder();
         ModifiableSolrParams params = new ModifiableSolrParams();
         params.add((CommonParams.Q), query);
         if (QueryParserType.XML == queryParser) {
             params.add("defType", "xml");
         }
-        params.add(CommonParams.START, Integer.toString(position));
+        // when there is a cursor, the results begin with the document following the cursor
+        int offset = cursorFilter == null ? batchPosition : 0;
+        if (cursorFilter != null) {
+            params.add(CommonParams.FQ, cursorFilter);
+        }
+        params.add(CommonParams.START, Integer.toString(offset));
         params.add(CommonParams.ROWS, Integer.toString(limit));
-        //params.add(CommonParams.FL, uriFieldName, xmlFieldName, idFieldName);
-        params.add(CommonParams.FL, "*");
+        Set<String> storedFields = context.getStoredFields();
+        SortSpec sortSpec = makeSortSpec(offset);
+        if (storedFields == null && ! lazyFetch) {
+            params.add(CommonParams.FL, "*");
+        } else {
+            // retrieve only the fields we need: the document itself, the sort keys, and any fields the query reads
+            LinkedHashSet<String> fl = new LinkedHashSet<String>();
+            fl.add(uriFieldName);
+            fl.add(idFieldName);
+            if (lazyFetch) {
+                fl.add(SHARD_FIELD);
+            } else {
+                fl.add(xmlFieldName);
+            }
+            for (SortField sortField : sortSpec.getSort().getSort()) {
+                if (sortField.getField() != null) {
+                    fl.add(sortField.getField());
+                }
+            }
+            if (storedFields != null) {
+                fl.addAll(storedFields);
+            } else {
+                // all the stored fields, apart from the document
+                IndexSchema schema = context.getQueryComponent().getSolrIndexConfig().getSchema();
+                for (SchemaField field : schema.getFields().values()) {
+                    if (field.stored() && ! field.getName().equals(xmlFieldName)) {
+                        fl.add(field.getName());
+                    }
+                }
+            }
+            params.add(CommonParams.FL, StringUtils.join(fl, ','));
+        }
 
         SolrParams origParams = origRB.req.getParams();
         String debug = origParams.get(CommonParams.DEBUG);
@@ -141,16 +393,81 @@ public class CloudSearchIterator extends SearchIteratorBase {
         }
         params.add("distrib", "true");
         params.add("shards", origParams.get("shards"));
-        SortSpec sortSpec = makeSortSpec();
+        long timeAllowed = context.getCancellationToken().getTimeRemaining();
+        if (timeAllowed > 0) {
+            params.add(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
+        }
         addSortParam (params, sortSpec);
-        XQueryComponent xqueryComponent = ((SolrQueryContext)eval.getQueryContext()).getQueryComponent();
-        SolrQueryRequest req = new CloudQueryRequest(xqueryComponent.getCore(), params, sortSpec);
-        response = new SolrQueryResponse();
-        xqueryComponent.getSearchHandler().handleRequest(req, response);
-        SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
-        if (docs != null) {
-            eval.getQueryStats().docCount += docs.getNumFound();
+        return new CloudQueryRequest(context.getQueryComponent().getCore(), params, sortSpec);
+    }
+
+    /*
+     * Retrieve the bodies of the documents in the batch starting with the given one, up to the initial batch
+     * size, that are not already cached, with one request to each shard holding any of them.
+     */
+    private void fetchDocuments (SolrDocumentList docs, int first, SolrIndexSearcher searcher) {
+        LinkedHashMap<String, List<SolrDocument>> shardDocs = new LinkedHashMap<String, List<SolrDocument>>();
+        HashMap<Long, SolrDocument> byId = new HashMap<Long, SolrDocument>();
+        for (int i = first; i < docs.size() && byId.size() < initialLimit; i++) {
+            SolrDocument doc = docs.get(i);
+            Long id = (Long) doc.getFirstValue(idFieldName);
+            if (doc.getFirstValue(xmlFieldName) != null || (i > first && DocumentCache.get(searcher, id) != null)) {
+                continue;
+            }
+            String shard = (String) doc.getFirstValue(SHARD_FIELD);
+            List<SolrDocument> group = shardDocs.get(shard);
+            if (group == null) {
+                group = new ArrayList<SolrDocument>();
+                shardDocs.put(shard, group);
+            }
+            group.add(doc);
+            byId.put(id, doc);
         }
+        SolrQueryContext context = (SolrQueryContext)eval.getQueryContext();
+        for (Map.Entry<String, List<SolrDocument>> entry : shardDocs.entrySet()) {
+            StringBuilder q = new StringBuilder (idFieldName).append(":(");
+            for (SolrDocument doc : entry.getValue()) {
+                if (q.charAt(q.length() - 1) != '(') {
+                    q.append(" OR ");
+                }
+                q.append(doc.getFirstValue(idFieldName));
+            }
+            q.append(')');
+            ModifiableSolrParams params = new ModifiableSolrParams();
+            params.add(CommonParams.Q, q.toString());
+            params.add(CommonParams.FL, idFieldName, xmlFieldName);
+            params.add(CommonParams.ROWS, Integer.toString(entry.getValue().size()));
+            params.add("distrib", "true");
+            // if the shard is unknown, ask all of them
+            params.add("shards", entry.getKey() != null ? entry.getKey() : context.getResponseBuilder().req.getParams().get("shards"));
+            long timeAllowed = context.getCancellationToken().getTimeRemaining();
+            if (timeAllowed > 0) {
+                params.add(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
+            }
+            SortSpec sortSpec = new SortSpec(new Sort(new SortField(idFieldName, Type.LONG)), 0, entry.getValue().size());
+            SolrQueryResponse rsp = search (context.getQueryComponent().getSearchHandler(), 
+                    new CloudQueryRequest(context.getQueryComponent().getCore(), params, sortSpec));
+            if (rsp.getException() != null) {
+                throw new LuxException ("An error occurred while retrieving documents", rsp.getException());
+            }
+            SolrDocumentList bodies = (SolrDocumentList) rsp.getValues().get("response");
+            if (bodies == null) {
+                continue;
+            }
+            for (SolrDocument body : bodies) {
+                SolrDocument doc = byId.get(body.getFirstValue(idFieldName));
+                if (doc != null) {
+                    doc.setField(xmlFieldName, body.getFirstValue(xmlFieldName));
+                }
+            }
+        }
+    }
+
+    /* Run the request; this may be called from a prefetch thread, so it must not touch the iterator's state */
+    private static SolrQueryResponse search (SearchHandler searchHandler, SolrQueryRequest req) {
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        searchHandler.handleRequest(req, rsp);
+        return rsp;
     }
     
     private void addSortParam(ModifiableSolrParams params, SortSpec sortSpec) {
@@ -183,7 +500,7 @@ public class CloudSearchIterator extends SearchIteratorBase {
         return effectiveCriteria; 
     }
 
-    private SortSpec makeSortSpec () {
+    private SortSpec makeSortSpec (int offset) {
         Sort sort;
         // add the uri field as a fallback sorting criterion to enforce a consistent
         // document order
@@ -193,18 +510,94 @@ public class CloudSearchIterator extends SearchIteratorBase {
             //sort = new Sort (SortField.FIELD_SCORE, new SortField(uriFieldName, Type.STRING));
             sort = new Sort (new SortField(idFieldName, Type.LONG));
         }
-        return new SortSpec (sort, position, limit);
+        return new SortSpec (sort, offset, limit);
+    }
+
+    /**
+     * Creates a filter query matching the documents that sort after the given document: 
+     * <code>(f1 &gt; v1) OR (f1 = v1 AND f2 &gt; v2) ... </code>, where the last sort field is always
+     * the (unique) docid.
+     * @param last the last document retrieved
+     * @return the filter, or null if one can't be created, because a sort value was unavailable, or
+     * the sort order of documents missing the value is unknown
+     */
+    private String makeCursorFilter (SolrDocument last) {
+        IndexSchema schema = ((SolrQueryContext) eval.getQueryContext()).getQueryComponent().getSolrIndexConfig().getSchema();
+        SortField[] sortFields = makeSortSpec(0).getSort().getSort();
+        StringBuilder filter = new StringBuilder ("{!cache=false}");
+        StringBuilder equal = new StringBuilder ();
+        for (int i = 0; i < sortFields.length; i++) {
+            String field = sortFields[i].getField();
+            if (field == null) {
+                // relevance
+                return null;
+            }
+            SchemaField schemaField = schema.getFieldOrNull(field);
+            if (schemaField == null || schemaField.multiValued()) {
+                return null;
+            }
+            String value = formatCursorValue (last.getFieldValue(field));
+            if (value == null) {
+                return null;
+            }
+            boolean reverse = sortFields[i].getReverse();
+            boolean missingAfter;
+            if (schemaField.sortMissingLast()) {
+                missingAfter = true;
+            } else if (schemaField.sortMissingFirst()) {
+                missingAfter = false;
+            } else if (schemaField.getType() instanceof TrieField && ! field.equals(idFieldName)) {
+                // missing numeric values sort as zero
+                return null;
+            } else {
+                // missing strings sort before all others
+                missingAfter = reverse;
+            }
+            if (i > 0) {
+                filter.append (" OR ");
+            }
+            // the alternatives are grouped so that the document must match one of them
+            filter.append ('(').append (equal).append ("+(");
+            if (missingAfter) {
+                filter.append ("(*:* -").append (field).append (":[* TO *]) OR ");
+            }
+            filter.append(field).append(':');
+            if (reverse) {
+                filter.append ("[* TO ").append (value).append ("}");
+            } else {
+                filter.append ('{').append (value).append (" TO *]");
+            }
+            filter.append ("))");
+            equal.append ('+').append (field).append (":[").append (value).append (" TO ").append (value).append ("] ");
+        }
+        return filter.toString();
+    }
+
+    private static String formatCursorValue (Object value) {
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        if (value instanceof Date) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format.format((Date) value);
+        }
+        if (value instanceof String) {
+            return '"' + ((String) value).replaceAll("([\\\\\"])", "\\\\$1") + '"';
+        }
+        return null;
     }
     
     /**
-     * @param limit the maximum number of results to retrieve per batch
+     * @param limit the number of results to retrieve in the first batch; later batches may be larger
      */
     public void setLimit (int limit) {
         this.limit = limit;
+        this.initialLimit = limit;
     }
     
     /**
-     * @return the maximum number of results to retrieve per batch
+     * @return the number of results to retrieve in the next batch
      */
     public int getLimit () {
         return limit;
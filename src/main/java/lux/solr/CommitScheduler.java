@@ -0,0 +1,207 @@
+package lux.solr;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lux.exception.LuxException;
+
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Performs the soft commits requested by queries (using lux:commit) on a core.  When the commit window
+ * is greater than zero, the first request starts the window, and all the requests arriving before it 
+ * closes are satisfied by a single commit performed when it does.  Callers may wait for that commit to
+ * complete, so that their updates are visible when they return, or not.  With a window of zero (the 
+ * default), every request is committed immediately, in the calling thread.
+ */
+public class CommitScheduler {
+
+    private final SolrCore core;
+
+    private volatile long window;
+
+    private ScheduledExecutorService executor;
+
+    // the commit that will be performed when the current window closes, or null if no window is open
+    private PendingCommit pending;
+
+    private final AtomicLong requested;
+
+    private final AtomicLong performed;
+
+    CommitScheduler (SolrCore core) {
+        this.core = core;
+        requested = new AtomicLong();
+        performed = new AtomicLong();
+        core.addCloseHook(new CloseHook() {
+            @Override
+            public void preClose(SolrCore c) {
+                shutdown();
+            }
+            @Override
+            public void postClose(SolrCore c) {
+            }
+        });
+    }
+
+    /**
+     * Requests a soft commit.
+     * @param cloud whether the commit is to be distributed to the whole cloud using the lux update chain
+     * @param wait whether to wait until the commit has been performed
+     */
+    public void commit (boolean cloud, boolean wait) {
+        requested.incrementAndGet();
+        if (window <= 0) {
+            doCommit (cloud);
+            return;
+        }
+        PendingCommit commit;
+        synchronized (this) {
+            if (pending == null) {
+                try {
+                    // closeWindow() can't run until this block exits, so it will find the new pending commit
+                    getExecutor().schedule(new Runnable () {
+                        @Override
+                        public void run () {
+                            closeWindow();
+                        }
+                    }, window, TimeUnit.MILLISECONDS);
+                    pending = new PendingCommit();
+                } catch (RejectedExecutionException e) {
+                    // the core is closing: no window will close, so commit now
+                }
+            }
+            commit = pending;
+            if (commit != null) {
+                commit.cloud |= cloud;
+            }
+        }
+        if (commit == null) {
+            doCommit (cloud);
+            return;
+        }
+        if (wait) {
+            commit.await();
+        }
+    }
+
+    private void closeWindow () {
+        PendingCommit commit;
+        synchronized (this) {
+            commit = pending;
+            pending = null;
+        }
+        try {
+            doCommit (commit.cloud);
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(CommitScheduler.class).error("commit failed", e);
+            commit.error = e;
+        } finally {
+            commit.done.countDown();
+        }
+    }
+
+    private void doCommit (boolean cloud) {
+        performed.incrementAndGet();
+        SolrQueryRequest req  = new SolrQueryRequestBase (core, new ModifiableSolrParams()) {};
+        CommitUpdateCommand cmd = new CommitUpdateCommand(req, false);
+        cmd.softCommit = true;
+        boolean setRequestInfo = SolrRequestInfo.getRequestInfo() == null;
+        try {
+            if (cloud) {
+                SolrQueryResponse rsp = new SolrQueryResponse();
+                if (setRequestInfo) {
+                    // committing from the scheduler's thread
+                    SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+                }
+                UpdateRequestProcessorChain updateChain = core.getUpdateProcessingChain("lux-update-chain");
+                updateChain.createProcessor(req, rsp).processCommit(cmd);
+            } else {
+                // commit locally
+                core.getUpdateHandler().commit(cmd);
+            }
+        } catch (IOException e) {
+            throw new LuxException(e);
+        } finally {
+            if (setRequestInfo && cloud) {
+                SolrRequestInfo.clearRequestInfo();
+            }
+            req.close();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getExecutor () {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new DefaultSolrThreadFactory("luxCommit"));
+        }
+        return executor;
+    }
+
+    private synchronized void shutdown () {
+        if (executor != null) {
+            // scheduled commits still run, but no new ones are accepted
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param window the time, in milliseconds, during which commit requests are gathered before committing
+     */
+    public void setWindow (long window) {
+        this.window = window;
+    }
+
+    public long getWindow () {
+        return window;
+    }
+
+    public NamedList<Object> getStatistics () {
+        NamedList<Object> stats = new NamedList<Object>();
+        long performedCount = performed.get();
+        long requestedCount = requested.get();
+        stats.add("window", window);
+        stats.add("requested", requestedCount);
+        stats.add("performed", performedCount);
+        stats.add("merged", requestedCount - performedCount);
+        return stats;
+    }
+
+    private static class PendingCommit {
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean cloud;
+        volatile RuntimeException error;
+
+        void await () {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LuxException (e);
+            }
+            if (error != null) {
+                throw new LuxException ("commit failed", error);
+            }
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
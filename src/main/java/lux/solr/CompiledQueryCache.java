@@ -0,0 +1,241 @@
+package lux.solr;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.s9api.XQueryExecutable;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A bounded cache of compiled queries, keyed on the query text, its base URI, and the generation of
+ * the index configuration it was compiled against.  Compiled queries are immutable and may be
+ * evaluated by many threads at once, so a single cache is shared by all the requests served by a core.
+ * When the cache is full, the least-recently used query is evicted.  Each query records the library
+ * modules it imports; a query is discarded if any of them has changed since it was compiled.
+ */
+public class CompiledQueryCache {
+
+    public static final int DEFAULT_SIZE = 128;
+
+    private final LinkedHashMap<Key, CompiledQuery> cache;
+
+    private final ModuleCache moduleCache;
+
+    private volatile int maxSize;
+
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    private final AtomicLong invalidations;
+
+    /**
+     * @param maxSize the maximum number of compiled queries to retain
+     * @param moduleCache the cache from which library modules imported by queries are loaded
+     */
+    public CompiledQueryCache (int maxSize, ModuleCache moduleCache) {
+        this.maxSize = maxSize;
+        this.moduleCache = moduleCache;
+        hits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+        invalidations = new AtomicLong();
+        cache = new LinkedHashMap<Key, CompiledQuery>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<Key, CompiledQuery> eldest) {
+                if (size() > CompiledQueryCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param query the query text
+     * @param baseURI the base URI against which the query was compiled; may be null
+     * @param generation the index configuration generation
+     * @return the cached compiled query, or null if there is none, or if any of the modules it imports
+     * has changed since it was compiled
+     */
+    public CompiledQuery get (String query, URI baseURI, int generation) {
+        Key key = new Key(query, baseURI, generation);
+        CompiledQuery expr;
+        synchronized (cache) {
+            expr = cache.get(key);
+        }
+        if (expr != null && ! expr.isCurrent(moduleCache)) {
+            synchronized (cache) {
+                if (cache.get(key) == expr) {
+                    cache.remove(key);
+                }
+            }
+            invalidations.incrementAndGet();
+            expr = null;
+        }
+        if (expr == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return expr;
+    }
+
+    public void put (String query, URI baseURI, int generation, CompiledQuery expr) {
+        if (maxSize <= 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(new Key(query, baseURI, generation), expr);
+        }
+    }
+
+    public void clear () {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int size () {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize the maximum number of compiled queries to retain.  Zero disables caching.
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        synchronized (cache) {
+            if (cache.size() > maxSize) {
+                // the map only trims itself on insert
+                cache.clear();
+            }
+        }
+    }
+
+    public long getHits () {
+        return hits.get();
+    }
+
+    public long getMisses () {
+        return misses.get();
+    }
+
+    public NamedList<Object> getStatistics () {
+        NamedList<Object> stats = new NamedList<Object>();
+        long h = hits.get(), m = misses.get();
+        stats.add("hits", h);
+        stats.add("misses", m);
+        stats.add("hitratio", (h + m) == 0 ? 0f : ((float) h) / (h + m));
+        stats.add("evictions", evictions.get());
+        stats.add("invalidations", invalidations.get());
+        stats.add("size", size());
+        stats.add("maxSize", maxSize);
+        return stats;
+    }
+
+    /**
+     * A compiled query, together with the library modules it imports, and the stored fields it reads.
+     */
+    public static final class CompiledQuery {
+        private final XQueryExecutable executable;
+        private final Map<String,Long> modules;
+        private volatile Set<String> storedFields;
+        private volatile boolean storedFieldsCollected;
+
+        /**
+         * @param executable the compiled query
+         * @param modules the URLs of the library modules imported by the query, mapped to their modification
+         * times when it was compiled; may be null
+         */
+        public CompiledQuery (XQueryExecutable executable, Map<String,Long> modules) {
+            this.executable = executable;
+            if (modules == null) {
+                this.modules = Collections.emptyMap();
+            } else {
+                this.modules = modules;
+            }
+        }
+
+        public XQueryExecutable getExecutable () {
+            return executable;
+        }
+
+        /**
+         * @return the URLs of the library modules imported by the query, mapped to their modification times
+         */
+        public Map<String,Long> getModules () {
+            return modules;
+        }
+
+        /**
+         * @return the names of the stored fields read by the query, or null if they cannot be determined.
+         * They are determined the first time they are requested.
+         * @see StoredFieldCollector
+         */
+        public Set<String> getStoredFields () {
+            if (! storedFieldsCollected) {
+                Set<String> fields = StoredFieldCollector.collect(executable);
+                storedFields = fields == null ? null : Collections.unmodifiableSet(fields);
+                storedFieldsCollected = true;
+            }
+            return storedFields;
+        }
+
+        boolean isCurrent (ModuleCache moduleCache) {
+            for (Map.Entry<String,Long> module : modules.entrySet()) {
+                if (! moduleCache.isCurrent(module.getKey(), module.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Key {
+        private final String query;
+        private final URI baseURI;
+        private final int generation;
+        private final int hashCode;
+
+        Key (String query, URI baseURI, int generation) {
+            this.query = query;
+            this.baseURI = baseURI;
+            this.generation = generation;
+            int h = query.hashCode();
+            h = h * 31 + (baseURI == null ? 0 : baseURI.hashCode());
+            hashCode = h * 31 + generation;
+        }
+
+        @Override
+        public int hashCode () {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return generation == other.generation && query.equals(other.query) &&
+                    (baseURI == null ? other.baseURI == null : baseURI.equals(other.baseURI));
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
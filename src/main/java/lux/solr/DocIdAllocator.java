@@ -0,0 +1,92 @@
+package lux.solr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Allocates lux_docids: unique, increasing identifiers that define XQuery document order across a
+ * collection.  Each id is composed of a timestamp in milliseconds (the high 42 bits), a node identifier
+ * (10 bits) and a sequence number within the millisecond (12 bits):
+ * 
+ * <pre>millis &lt;&lt; 22 | node &lt;&lt; 12 | sequence</pre>
+ * 
+ * Ids allocated by different nodes differ in their node bits, and ids allocated by a single node strictly
+ * increase: when more than 4096 ids are requested in the same millisecond, the allocator borrows from 
+ * the following millisecond, and it never moves backwards if the clock does.  Allocation is lock-free.
+ * The layout leaves the timestamp where it has always been, so ids allocated in this way sort after those 
+ * created by earlier versions.
+ */
+public class DocIdAllocator {
+
+    public static final int NODE_BITS = 10;
+
+    public static final int SEQUENCE_BITS = 12;
+
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final Pattern NODE_NUMBER = Pattern.compile("(\\d{1,9})$");
+
+    private final long node;
+
+    // the last allocated (millis << SEQUENCE_BITS | sequence)
+    private final AtomicLong last;
+
+    /**
+     * @param node the identifier of this node, in [0, {@link #MAX_NODE}]; it must be distinct from the 
+     * identifiers used by all other nodes allocating ids for the same collection.
+     */
+    public DocIdAllocator (int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException ("node identifier out of range: " + node);
+        }
+        this.node = node;
+        last = new AtomicLong();
+    }
+
+    /**
+     * @return a new id, greater than any previously returned by this allocator
+     */
+    public long next () {
+        long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        for (;;) {
+            long prev = last.get();
+            long current = Math.max(prev + 1, now);
+            if (last.compareAndSet(prev, current)) {
+                long millis = current >>> SEQUENCE_BITS;
+                return (millis << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (current & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    public int getNode () {
+        return (int) node;
+    }
+
+    /**
+     * Derives a node identifier from a SolrCloud core node name such as "core_node7".  The cluster never
+     * reuses core node numbers, so they may exceed {@link #MAX_NODE}, and the identifiers derived from them 
+     * are not guaranteed to be unique; {@link CloudIdProcessorFactory} uses this only as the identifier it
+     * tries to claim first, and as a fallback when it cannot claim one.
+     * @param coreNodeName the core node name, or null if the core is not part of a cloud
+     * @return the number at the end of the core node name, modulo MAX_NODE + 1, or a hash of the name
+     * if it does not end with a number
+     */
+    public static int nodeIdFor (String coreNodeName) {
+        if (coreNodeName == null) {
+            return 0;
+        }
+        Matcher matcher = NODE_NUMBER.matcher(coreNodeName);
+        if (! matcher.find()) {
+            return coreNodeName.hashCode() & MAX_NODE;
+        }
+        return Integer.parseInt(matcher.group(1)) & MAX_NODE;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,92 @@
+package lux.solr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.TransformerException;
+
+import lux.Evaluator;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.ExtensionFunctionCall;
+import net.sf.saxon.lib.ExtensionFunctionDefinition;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.SequenceExtent;
+import net.sf.saxon.value.SequenceType;
+
+/**
+ * <code>lux:docs($uris as xs:string*) as document-node()*</code>
+ * 
+ * Returns the documents with the given uris, in the same order; like fn:doc(), raises an error if any
+ * of them is not found.  Unlike a series of calls to fn:doc(), in a distributed setting all of the documents
+ * are retrieved using a single request to each of the shards that own them, which makes joins through
+ * document uris much cheaper.
+ */
+public class DocsFunction extends ExtensionFunctionDefinition {
+
+    private final SolrURIResolver uriResolver;
+
+    DocsFunction (SolrURIResolver uriResolver) {
+        this.uriResolver = uriResolver;
+    }
+
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName("lux", Evaluator.LUX_NAMESPACE, "docs");
+    }
+
+    @Override
+    public SequenceType[] getArgumentTypes() {
+        return new SequenceType[] { SequenceType.STRING_SEQUENCE };
+    }
+
+    @Override
+    public SequenceType getResultType(SequenceType[] suppliedArgumentTypes) {
+        return SequenceType.NODE_SEQUENCE;
+    }
+
+    @Override
+    public boolean dependsOnFocus() {
+        return false;
+    }
+
+    @Override
+    public ExtensionFunctionCall makeCallExpression() {
+        return new DocsCall();
+    }
+
+    class DocsCall extends ExtensionFunctionCall {
+
+        @Override
+        public Sequence call(XPathContext context, Sequence[] arguments) throws XPathException {
+            ArrayList<String> uris = new ArrayList<String>();
+            SequenceIterator<? extends Item> iter = arguments[0].iterate();
+            Item item;
+            while ((item = iter.next()) != null) {
+                uris.add(item.getStringValue());
+            }
+            List<XdmNode> docs;
+            try {
+                docs = uriResolver.getDocuments(uris);
+            } catch (TransformerException e) {
+                throw XPathException.makeXPathException(e);
+            }
+            ArrayList<NodeInfo> nodes = new ArrayList<NodeInfo>(docs.size());
+            for (XdmNode doc : docs) {
+                nodes.add(doc.getUnderlyingNode());
+            }
+            return new SequenceExtent<NodeInfo>(nodes);
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
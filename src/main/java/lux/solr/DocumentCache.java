@@ -0,0 +1,74 @@
+package lux.solr;
+
+import java.io.IOException;
+
+import net.sf.saxon.s9api.XdmNode;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Access to a Solr user cache, named "lux-documents", that holds parsed documents so that they may be
+ * shared by all the requests using the same searcher.  The cache is optional; if it is not declared in
+ * solrconfig.xml, documents are not cached beyond the lifetime of a request:
+ * 
+ * <pre>
+ * &lt;cache name="lux-documents" class="solr.LRUCache" size="1024" initialSize="256" autowarmCount="256"
+ *         regenerator="lux.solr.DocumentCache"/&gt;
+ * </pre>
+ * 
+ * Documents are cached under two kinds of key: documents retrieved from SolrCloud are keyed by their
+ * (Long) lux docid, which identifies a single version of a document, and documents retrieved from the
+ * local index are keyed by their (String) uri, which is only valid for the searcher that found them.
+ * When a new searcher is opened, only the entries keyed by docid are carried over.  Cached documents
+ * are shared by concurrent requests, so they must not be modified once cached; the stored fields
+ * that a request retrieves with a document are held in its {@link SolrQueryContext}.
+ */
+public class DocumentCache implements CacheRegenerator {
+
+    public static final String CACHE_NAME = "lux-documents";
+
+    /**
+     * @param searcher the searcher whose cache is to be consulted
+     * @param key the document's lux docid (Long) or uri (String)
+     * @return the cached document, or null if it is not cached, or there is no cache
+     */
+    @SuppressWarnings("unchecked")
+    public static XdmNode get (SolrIndexSearcher searcher, Object key) {
+        SolrCache<Object,XdmNode> cache = searcher.getCache(CACHE_NAME);
+        if (cache == null) {
+            return null;
+        }
+        return cache.get(key);
+    }
+
+    /**
+     * @param searcher the searcher whose cache is to be updated
+     * @param key the document's lux docid (Long) or uri (String)
+     * @param doc the document
+     */
+    @SuppressWarnings("unchecked")
+    public static void put (SolrIndexSearcher searcher, Object key, XdmNode doc) {
+        SolrCache<Object,XdmNode> cache = searcher.getCache(CACHE_NAME);
+        if (cache != null) {
+            cache.put(key, doc);
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey,
+            Object oldVal) throws IOException {
+        if (oldKey instanceof Long) {
+            // a docid always refers to the same document content
+            newCache.put(oldKey, oldVal);
+        }
+        return true;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,38 @@
+package lux.solr;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+
+/**
+ * Creates processors that analyze the xml of each added document once, on the node that receives it
+ * from the client, and record the resulting fields in the document as a {@link PreAnalyzedDocument}.  The
+ * {@link LuxUpdateProcessor}s of the leader and replicas that index the document, and replays of their
+ * transaction logs, index those fields directly, without parsing the xml again.  This processor must come
+ * *before* the DistributedUpdateProcessor in the update chain, and the LuxUpdateProcessor after it, as usual.
+ * Any pre-analyzed fields supplied by the client are replaced, and atomic updates are not pre-analyzed.
+ * When the receiving node is not the leader, the leader analyzes the document again, since it does not trust
+ * fields it did not compute, and passes the result on to its replicas.
+ */
+public class LuxPreAnalyzeProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
+
+    SolrIndexConfig indexConfig;
+
+    @Override
+    public void inform(SolrCore core) {
+        indexConfig = SolrIndexConfig.registerIndexConfiguration(core);
+    }
+
+    @Override
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
+        return new LuxUpdateProcessor (indexConfig, req, next, null, 0, null, true);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
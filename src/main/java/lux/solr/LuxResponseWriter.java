@@ -1,14 +1,17 @@
 package lux.solr;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.List;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.ContentStreamBase;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
-import org.apache.solr.response.QueryResponseWriter;
+import org.apache.solr.response.BinaryQueryResponseWriter;
 import org.apache.solr.response.SolrQueryResponse;
 
 /**
@@ -18,8 +21,12 @@ import org.apache.solr.response.SolrQueryResponse;
  *  of nodes: default is html.  Output is always serialized as utf-8.
  *
  *  lux.xml-xsl-stylesheet
+ *  
+ *  When lux.streaming=true, results are serialized to the output as they are generated, 
+ *  rather than being accumulated in memory first.  In that case errors are reported
+ *  in an errors element following the results, rather than with an error status.
  */
-public class LuxResponseWriter implements QueryResponseWriter {
+public class LuxResponseWriter implements BinaryQueryResponseWriter {
 
     /*
      *             net.sf.saxon.s9api.QName STATUS = new net.sf.saxon.s9api.QName("status");
@@ -39,12 +46,58 @@ public class LuxResponseWriter implements QueryResponseWriter {
 
     @Override
     public void write(Writer writer, SolrQueryRequest request, SolrQueryResponse response) throws IOException {
-        
+        try {
+            write (writer, null, request, response);
+        } finally {
+            releaseResultBuffer (request);
+        }
+    }
+
+    /**
+     * Writes the response as bytes.  Serialized nodes held in a {@link ResultBuffer} are copied directly
+     * to the output, without being decoded.  This is only possible when the output is encoded as UTF-8;
+     * otherwise the response is written as characters.
+     */
+    @Override
+    public void write(OutputStream out, SolrQueryRequest request, SolrQueryResponse response) throws IOException {
+        try {
+            String charset = ContentStreamBase.getCharsetFromContentType(getContentType(request, response));
+            if (charset != null && ! charset.equalsIgnoreCase("utf-8")) {
+                Writer writer = new OutputStreamWriter(out, charset);
+                write (writer, null, request, response);
+                writer.flush();
+            } else {
+                Writer writer = new OutputStreamWriter(out, ResultBuffer.UTF8);
+                write (writer, out, request, response);
+                writer.flush();
+            }
+        } finally {
+            releaseResultBuffer (request);
+        }
+    }
+    
+    private void releaseResultBuffer (SolrQueryRequest request) {
+        ResultBuffer resultBuffer = (ResultBuffer) request.getContext().remove(XQueryComponent.RESULT_BUFFER);
+        if (resultBuffer != null) {
+            resultBuffer.release();
+        }
+    }
+
+    /**
+     * @param writer the response is written here
+     * @param out if not null, this is the stream underlying writer, to which serialized results are written directly
+     */
+    private void write(Writer writer, OutputStream out, SolrQueryRequest request, SolrQueryResponse response) throws IOException {
         String xsl = request.getParams().get("lux.xml-xsl-stylesheet");
         @SuppressWarnings("unchecked")
         List<String> errors = response.getValues().getAll("xpath-error");
         String contentType = getContentType (request, response);
-        NamedList<?> values = (NamedList<?>) response.getValues().get("xpath-results");
+        Object results = response.getValues().get("xpath-results");
+        if (results instanceof XQueryResultStream) {
+            writeStream (writer, xsl, contentType, (XQueryResultStream) results);
+            return;
+        }
+        NamedList<?> values = (NamedList<?>) results;
         if (values == null && !errors.isEmpty()) {
             StringBuilder buf = new StringBuilder();
             for (String e : errors) {
@@ -73,17 +126,14 @@ public class LuxResponseWriter implements QueryResponseWriter {
                 }
                 for (int i = 0; i < values.size(); i++) {
                     Object val = values.getVal(i);
-                    writer.write(val.toString());
-                }
-                if (!errors.isEmpty()) {
-                    writer.write("<errors>");
-                    for (String error : errors) {
-                        writer.write("<error>");
-                        writer.write(error.replace("&", "&amp;"). replace("<", "&lt;"));
-                        writer.write("</error>");
+                    if (out != null && val instanceof ResultBuffer.Segment) {
+                        writer.flush();
+                        ((ResultBuffer.Segment) val).writeTo(out);
+                    } else {
+                        writer.write(val.toString());
                     }
-                    writer.write("</errors>");
                 }
+                writeErrors(writer, errors);
                 if (wrapResults) {
                     writer.write("</results>");
                 }
@@ -91,6 +141,45 @@ public class LuxResponseWriter implements QueryResponseWriter {
         }
     }
     
+    /**
+     * Writes results as they are pulled from the query evaluation.  Any errors are written at the end,
+     * and the response status is unaffected by them.
+     */
+    private void writeStream (Writer writer, String xsl, String contentType, XQueryResultStream results) throws IOException {
+        try {
+            if (xsl != null) {
+                writer.write("<?xml-stylesheet type='text/xsl' href='" + xsl + "' ?>\n");
+            }
+            boolean wrapResults = isXML(contentType) && ! results.isSingleNode();
+            if (wrapResults) {
+                writer.write("<results>");
+            }
+            while (results.hasNext()) {
+                if (! results.write(results.next(), writer)) {
+                    break;
+                }
+            }
+            writeErrors(writer, results.getErrors());
+            if (wrapResults) {
+                writer.write("</results>");
+            }
+        } finally {
+            results.close();
+        }
+    }
+    
+    private void writeErrors (Writer writer, List<String> errors) throws IOException {
+        if (!errors.isEmpty()) {
+            writer.write("<errors>");
+            for (String error : errors) {
+                writer.write("<error>");
+                writer.write(error.replace("&", "&amp;"). replace("<", "&lt;"));
+                writer.write("</error>");
+            }
+            writer.write("</errors>");
+        }
+    }
+    
     private boolean isXML (String contentType) {
         return contentType.endsWith ("xml") || contentType.contains("xml; charset=");
     }
@@ -2,7 +2,17 @@ package lux.solr;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -14,102 +24,447 @@ import lux.xml.tinybin.TinyBinary;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.om.NodeInfo;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.SolrInputField;
+import org.apache.solr.handler.component.RealTimeGetComponent;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.DocumentBuilder;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
+import org.apache.solr.update.UpdateCommand;
+import org.apache.solr.update.VersionInfo;
+import org.apache.solr.update.processor.DistributedUpdateProcessor;
+import org.apache.solr.update.processor.DistributedUpdateProcessor.DistribPhase;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Handles documents written to Solr via its HTTP APIs
+ * Handles documents written to Solr via its HTTP APIs.  When it is given an executor, the documents of
+ * a request are parsed and indexed on the executor's threads, several at a time, and the resulting
+ * commands are passed to the next processor in the order they were received.
  */
 public class LuxUpdateProcessor extends UpdateRequestProcessor {
 
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    // the request context key of the document being passed on by a pre-analyze processor
+    private static final String PRE_ANALYZED_DOCUMENT = "lux.preAnalyzedDocument";
+
     private final SolrIndexConfig solrIndexConfig;
     private final IndexConfiguration indexConfig;
     private final Configuration saxonConfig;
     private final SolrQueryRequest req;
     private final Logger logger;
+    private final ExecutorService executor;
+    private final int maxPending;
+    // documents being indexed, in the order they were received
+    private final ArrayDeque<Future<UpdateDocCommand>> pending;
+    // the name of the field holding the digest of each document's xml, or null if digests are not computed
+    private final String digestFieldName;
+    // the digests of the documents added by this request, by uri
+    private final HashMap<String,String> addedDigests;
+    
+    // when true, documents are only analyzed, and passed on for indexing by another LuxUpdateProcessor
+    private final boolean preAnalyze;
     
     public LuxUpdateProcessor (SolrIndexConfig config, SolrQueryRequest req, UpdateRequestProcessor next) {
+        this (config, req, next, null, 0, null, false);
+    }
+
+    /**
+     * @param config the core's lux configuration
+     * @param req the update request
+     * @param next the next processor in the chain
+     * @param executor if not null, documents are indexed using this executor 
+     * @param maxPending the maximum number of documents indexed concurrently
+     * @param digestFieldName if not null, the MD5 digest of each document's xml is stored in this field,
+     * and documents whose digest matches that of the indexed document with the same uri are not updated
+     * @param preAnalyze if true, documents are not indexed; instead the fields derived from their xml are
+     * serialized into a {@link PreAnalyzedDocument} field, and the documents are passed on to be indexed
+     * by the LuxUpdateProcessors of the nodes that index them.
+     */
+    public LuxUpdateProcessor (SolrIndexConfig config, SolrQueryRequest req, UpdateRequestProcessor next, ExecutorService executor, int maxPending,
+            String digestFieldName, boolean preAnalyze) {
         super(next);
         solrIndexConfig = config;
         indexConfig = solrIndexConfig.getIndexConfig();
         saxonConfig = solrIndexConfig.getCompiler().getProcessor().getUnderlyingConfiguration();
         this.req = req;
+        this.executor = executor;
+        this.maxPending = maxPending;
+        pending = new ArrayDeque<Future<UpdateDocCommand>>();
+        this.digestFieldName = digestFieldName;
+        this.preAnalyze = preAnalyze;
+        addedDigests = new HashMap<String, String>();
         logger = LoggerFactory.getLogger(getClass());
     }
 
     @Override
     public void processAdd (final AddUpdateCommand cmd) throws IOException {
-        SolrInputDocument solrInputDocument = cmd.getSolrInputDocument();
+        final SolrInputDocument solrInputDocument = cmd.getSolrInputDocument();
         String xmlFieldName = indexConfig.getFieldName(FieldRole.XML_STORE);
-        String idFieldName = indexConfig.getFieldName(FieldRole.ID);
+        final String uri = (String) solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldRole.URI));
+        if (preAnalyze) {
+            // pre-analyzed fields supplied by the client are never passed on
+            solrInputDocument.removeField(PreAnalyzedDocument.FIELD_NAME);
+            if (uri == null || ! isXmlText(solrInputDocument.getFieldValue(xmlFieldName))) {
+                // atomic updates are analyzed by the leader, once it has merged them with the stored document
+                if (next != null) {
+                    next.processAdd(cmd);
+                }
+                return;
+            }
+            preAnalyze (solrInputDocument, uri);
+            // marks the document so that, if this node is the leader, its own LuxUpdateProcessor uses the fields
+            req.getContext().put(PRE_ANALYZED_DOCUMENT, solrInputDocument);
+            try {
+                if (next != null) {
+                    next.processAdd(cmd);
+                }
+            } finally {
+                req.getContext().remove(PRE_ANALYZED_DOCUMENT);
+            }
+            return;
+        }
+        if (uri == null || solrInputDocument.getField(xmlFieldName) == null) {
+            solrInputDocument.removeField(indexConfig.getFieldName(FieldRole.ID));
+            solrInputDocument.removeField(PreAnalyzedDocument.FIELD_NAME);
+            drain (0);
+            if (next != null) {
+                next.processAdd(cmd);
+            }
+            return;
+        }
+        if (digestFieldName != null && isUnchanged(solrInputDocument, uri)) {
+            solrIndexConfig.countUnchangedDocument();
+            return;
+        }
+        if (solrInputDocument.getField(PreAnalyzedDocument.FIELD_NAME) != null && ! isPreAnalysisTrusted(cmd)) {
+            solrInputDocument.removeField(PreAnalyzedDocument.FIELD_NAME);
+            if (getDistribPhase() == DistribPhase.TOLEADER && isXmlText(solrInputDocument.getFieldValue(xmlFieldName))) {
+                // forwarded by the node that received the document: analyze it again, once, here, and pass the
+                // result on to the replicas
+                preAnalyze (solrInputDocument, uri);
+            }
+        }
+        final int commitWithin = cmd.commitWithin;
+        final boolean overwrite = cmd.overwrite;
+        if (executor == null) {
+            UpdateDocCommand luxCommand = indexDocument(solrInputDocument, uri, commitWithin, overwrite);
+            if (next != null) {
+                next.processAdd(luxCommand);
+            }
+            return;
+        }
+        // the command may be reused by the loader, so it is not passed to the worker
+        pending.add(executor.submit(new Callable<UpdateDocCommand>() {
+            @Override
+            public UpdateDocCommand call() throws IOException {
+                return indexDocument(solrInputDocument, uri, commitWithin, overwrite);
+            }
+        }));
+        drain (maxPending);
+    }
+
+    /**
+     * @return whether the document's pre-analyzed fields may be indexed in place of its xml: they may be if
+     * they were forwarded by the leader, or computed by this request's pre-analyze processor, or if the
+     * document is being replayed from an update log.  Otherwise they were supplied by a client, and may not
+     * match the xml.
+     */
+    private boolean isPreAnalysisTrusted (AddUpdateCommand cmd) {
+        if ((cmd.getFlags() & (UpdateCommand.REPLAY | UpdateCommand.PEER_SYNC)) != 0) {
+            return true;
+        }
+        if (getDistribPhase() == DistribPhase.FROMLEADER) {
+            return true;
+        }
+        return req.getContext().get(PRE_ANALYZED_DOCUMENT) == cmd.getSolrInputDocument();
+    }
+
+    private DistribPhase getDistribPhase () {
+        return DistribPhase.parseParam(req.getParams().get(DistributedUpdateProcessor.DISTRIB_UPDATE_PARAM));
+    }
+
+    /**
+     * @return whether the value of an xml field is serialized xml (text or TinyBinary), as opposed to
+     * an atomic update operation, for example.
+     */
+    private static boolean isXmlText (Object xml) {
+        return xml instanceof String || xml instanceof byte[] || xml instanceof ByteBuffer;
+    }
+
+    /**
+     * Computes the digest of the document's fields, including its xml, and records it in the document's 
+     * digest field.
+     * @return whether the digest is the same as that of the current version of the document, either
+     * added earlier in this request, or in the index (or the update log).
+     */
+    private boolean isUnchanged (SolrInputDocument solrInputDocument, String uri) throws IOException {
+        Object xml = solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldRole.XML_STORE));
+        if (! isXmlText(xml)) {
+            return false;
+        }
+        String digest = computeDigest (solrInputDocument);
+        solrInputDocument.setField(digestFieldName, digest);
+        String previous;
+        if (addedDigests.containsKey(uri)) {
+            previous = addedDigests.get(uri);
+        } else {
+            // looks in the update log first, so this finds uncommitted updates
+            SolrInputDocument current = RealTimeGetComponent.getInputDocument(req.getCore(), new BytesRef(uri));
+            previous = current == null ? null : (String) current.getFieldValue(digestFieldName);
+        }
+        addedDigests.put(uri, digest);
+        return digest.equals(previous);
+    }
+
+    /**
+     * @return the MD5 digest of the names and values of all the document's fields, in name order, apart 
+     * from those that are assigned afresh to every version of a document: the lux docid, the version, 
+     * the digest itself, and the pre-analyzed fields.
+     */
+    private String computeDigest (SolrInputDocument solrInputDocument) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException (e);
+        }
+        TreeSet<String> fieldNames = new TreeSet<String>(solrInputDocument.getFieldNames());
+        fieldNames.remove(indexConfig.getFieldName(FieldRole.ID));
+        fieldNames.remove(VersionInfo.VERSION_FIELD);
+        fieldNames.remove(digestFieldName);
+        fieldNames.remove(PreAnalyzedDocument.FIELD_NAME);
+        for (String fieldName : fieldNames) {
+            md5.update(fieldName.getBytes(UTF8));
+            md5.update((byte) 0);
+            for (Object value : solrInputDocument.getFieldValues(fieldName)) {
+                // tag the type of each value, and terminate it, so that different values can't produce the same bytes
+                if (value instanceof byte[]) {
+                    md5.update((byte) 'b');
+                    md5.update((byte[]) value);
+                } else if (value instanceof ByteBuffer) {
+                    md5.update((byte) 'b');
+                    md5.update(((ByteBuffer) value).duplicate());
+                } else {
+                    md5.update((byte) 's');
+                    md5.update(String.valueOf(value).getBytes(UTF8));
+                }
+                md5.update((byte) 0);
+            }
+            md5.update((byte) 1);
+        }
+        return new String(Hex.encodeHex(md5.digest()));
+    }
+
+    /**
+     * Passes completed documents to the next processor, in order, until no more than maxPending remain.
+     * @param remaining the number of documents that may remain in process
+     * @throws IOException if a document could not be indexed.  Documents following it are abandoned.
+     */
+    private void drain (int remaining) throws IOException {
+        while (pending.size() > remaining) {
+            UpdateDocCommand luxCommand;
+            try {
+                luxCommand = pending.remove().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                abandon ();
+                throw new IOException (e);
+            } catch (ExecutionException e) {
+                abandon ();
+                // rethrow the exception as it would have been thrown by the indexing thread, so that a 
+                // SolrException (for a bad field value, say) reports the same status
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException (cause);
+            }
+            if (next != null) {
+                next.processAdd(luxCommand);
+            }
+        }
+    }
+
+    private void abandon () {
+        for (Future<UpdateDocCommand> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+    }
 
+    private UpdateDocCommand indexDocument (SolrInputDocument solrInputDocument, String uri, int commitWithin, boolean overwrite) throws IOException {
+        String xmlFieldName = indexConfig.getFieldName(FieldRole.XML_STORE);
+        String idFieldName = indexConfig.getFieldName(FieldRole.ID);
         // remove and stash the xml field value
         SolrInputField xmlField = solrInputDocument.removeField(xmlFieldName);
         SolrInputField luxIdField = solrInputDocument.removeField(idFieldName);
-        String uri = (String) solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldRole.URI));
-        Document luceneDocument = cmd.getLuceneDocument();
-        UpdateDocCommand luxCommand = null;
-        if (uri != null && xmlField != null) {
-            // restore the xml field value
-            solrInputDocument.put (xmlFieldName, xmlField);
-            XmlIndexer xmlIndexer = solrIndexConfig.checkoutXmlIndexer();
-            Object xml = xmlField.getFirstValue();
-            try {
-                try {
-                    if (xml instanceof String) {
-                        xmlIndexer.index (new StringReader((String) xml), uri);
-                    } else if (xml instanceof byte[]) {
-                        TinyBinary xmlbin = new TinyBinary ((byte[]) xml, Charset.forName("utf-8"));
-                        xmlIndexer.index(xmlbin.getTinyDocument(saxonConfig), uri);
-                    } else if (xml instanceof NodeInfo) {
-                        xmlIndexer.index((NodeInfo) xml, uri);
-                    }
-                    // why is this here?  we're getting double values now since we also call 
-                    // addDocumentFIelds below?
-                    //luceneDocument = xmlIndexer.createLuceneDocument();
-                } catch (XMLStreamException e) {
-                    logger.error ("Failed to parse " + FieldRole.XML_STORE, e);
-                }
-                addDocumentFields (xmlIndexer, solrIndexConfig.getSchema(), luceneDocument);
-                if (luxIdField != null) {
-                    Object id = luxIdField.getValue();
-                    if (! (id instanceof Long)) {
-                        // solr cloud distributes these as Strings
-                        id = Long.valueOf(id.toString());
-                    }
-                    luceneDocument.add (new LongField(idFieldName, (Long) id, Store.YES));
+        SolrInputField preAnalyzedField = solrInputDocument.removeField(PreAnalyzedDocument.FIELD_NAME);
+        Document luceneDocument = DocumentBuilder.toDocument(solrInputDocument, req.getSchema());
+        // restore the xml field value, and the pre-analyzed fields, so they are written to the update log
+        solrInputDocument.put (xmlFieldName, xmlField);
+        if (preAnalyzedField != null) {
+            solrInputDocument.put (PreAnalyzedDocument.FIELD_NAME, preAnalyzedField);
+        }
+        try {
+            Object preAnalyzed = preAnalyzedField == null ? null : preAnalyzedField.getFirstValue();
+            if (preAnalyzed != null) {
+                // the xml was analyzed by a trusted processor: see processAdd
+                byte[] bytes = preAnalyzed instanceof ByteBuffer ? toByteArray((ByteBuffer) preAnalyzed) : (byte[]) preAnalyzed;
+                for (IndexableField field : PreAnalyzedDocument.deserialize(bytes)) {
+                    luceneDocument.add(field);
                 }
-                luxCommand = new UpdateDocCommand(req, solrInputDocument, luceneDocument, uri);
-            } catch(Exception e) {
-                logger.error("An error occurred while indexing " + uri, e);
-                throw new IOException(e);
+            } else {
+                addXmlFields (luceneDocument, xmlField.getFirstValue(), uri);
             }
-            finally {
-                solrIndexConfig.returnXmlIndexer(xmlIndexer);
+            if (luxIdField != null) {
+                Object id = luxIdField.getValue();
+                if (! (id instanceof Long)) {
+                    // solr cloud distributes these as Strings
+                    id = Long.valueOf(id.toString());
+                }
+                luceneDocument.add (new LongField(idFieldName, (Long) id, Store.YES));
             }
+            UpdateDocCommand luxCommand = new UpdateDocCommand(req, solrInputDocument, luceneDocument, uri);
+            luxCommand.commitWithin = commitWithin;
+            luxCommand.overwrite = overwrite;
             // logger.debug ("Indexed XML document " + uri);
+            return luxCommand;
+        } catch(Exception e) {
+            logger.error("An error occurred while indexing " + uri, e);
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Parses and indexes the xml, and adds the resulting fields to the Lucene document.
+     */
+    private void addXmlFields (Document luceneDocument, Object xml, String uri) {
+        XmlIndexer xmlIndexer = solrIndexConfig.checkoutXmlIndexer();
+        // TinyBinary bytes supplied by the client (or by a lux:insert on another node, or on this one)
+        byte[] tinyBytes = null;
+        if (xml instanceof byte[]) {
+            tinyBytes = (byte[]) xml;
+        } else if (xml instanceof ByteBuffer) {
+            tinyBytes = toByteArray((ByteBuffer) xml);
         }
-        if (next != null) {
-            next.processAdd(luxCommand == null ? cmd : luxCommand);
+        try {
+            try {
+                if (xml instanceof String) {
+                    xmlIndexer.index (new StringReader((String) xml), uri);
+                } else if (tinyBytes != null) {
+                    TinyBinary xmlbin = new TinyBinary (tinyBytes, UTF8);
+                    xmlIndexer.index(xmlbin.getTinyDocument(saxonConfig), uri);
+                } else if (xml instanceof NodeInfo) {
+                    xmlIndexer.index((NodeInfo) xml, uri);
+                }
+            } catch (XMLStreamException e) {
+                logger.error ("Failed to parse " + FieldRole.XML_STORE, e);
+            }
+            addDocumentFields (xmlIndexer, solrIndexConfig.getSchema(), luceneDocument, tinyBytes);
+        } finally {
+            solrIndexConfig.returnXmlIndexer(xmlIndexer);
+        }
+    }
+
+    /**
+     * Analyzes the document's xml, and records the resulting fields in its {@link PreAnalyzedDocument#FIELD_NAME}
+     * field, replacing any existing value.
+     */
+    private void preAnalyze (SolrInputDocument solrInputDocument, String uri) throws IOException {
+        Document xmlDocument = new Document();
+        try {
+            addXmlFields (xmlDocument, solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldRole.XML_STORE)), uri);
+        } catch (RuntimeException e) {
+            logger.error("An error occurred while indexing " + uri, e);
+            throw new IOException(e);
         }
+        // the uri field is created from the input document by each node
+        xmlDocument.removeFields(indexConfig.getFieldName(FieldRole.URI));
+        byte[] bytes = PreAnalyzedDocument.serialize(xmlDocument, req.getSchema().getIndexAnalyzer());
+        solrInputDocument.setField(PreAnalyzedDocument.FIELD_NAME, bytes);
     }
 
-    private void addDocumentFields (XmlIndexer indexer, IndexSchema indexSchema, Document doc) {
+    @Override
+    public void processDelete (DeleteUpdateCommand cmd) throws IOException {
+        drain (0);
+        if (cmd.isDeleteById()) {
+            addedDigests.put(cmd.getId(), null);
+        } else {
+            addedDigests.clear();
+        }
+        super.processDelete(cmd);
+    }
+
+    @Override
+    public void processMergeIndexes (MergeIndexesCommand cmd) throws IOException {
+        drain (0);
+        super.processMergeIndexes(cmd);
+    }
+
+    @Override
+    public void processCommit (CommitUpdateCommand cmd) throws IOException {
+        drain (0);
+        super.processCommit(cmd);
+    }
+
+    @Override
+    public void processRollback (RollbackUpdateCommand cmd) throws IOException {
+        // documents not yet passed on are discarded along with the rest
+        abandon ();
+        addedDigests.clear();
+        super.processRollback(cmd);
+    }
+
+    @Override
+    public void finish () throws IOException {
+        drain (0);
+        super.finish();
+    }
+
+    private static byte[] toByteArray (ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 && buf.remaining() == buf.array().length) {
+            return buf.array();
+        }
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param tinyBytes if not null, the TinyBinary encoding of the document, which is stored as-is
+     * when the xml is to be stored as TinyBinary, rather than encoding the indexed tree again.
+     */
+    private void addDocumentFields (XmlIndexer indexer, IndexSchema indexSchema, Document doc, byte[] tinyBytes) {
         if (indexConfig.isOption(IndexConfiguration.STORE_TINY_BINARY)) {
             // remove the serialized xml field value -- we will store a TinyBinary instead
-            doc.removeField(indexConfig.getFieldName(FieldRole.XML_STORE));
+            String xmlFieldName = indexConfig.getFieldName(FieldRole.XML_STORE);
+            doc.removeField(xmlFieldName);
+            if (tinyBytes != null) {
+                doc.add(new StoredField(xmlFieldName, tinyBytes));
+            }
         }
         for (FieldDefinition field : indexConfig.getFields()) {
             String fieldName = field.getName();
@@ -137,6 +492,9 @@ public class LuxUpdateProcessor extends UpdateRequestProcessor {
     
     // from solr..DocumentBuilder
     private static void addField(Document doc, SchemaField field, Object val, float boost) {
+        if (val == null) {
+            return;
+        }
         if (val instanceof IndexableField) {
             doc.add((IndexableField) val);
         } else {
@@ -1,26 +1,96 @@
 package lux.solr;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lux.index.FieldRole;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.apache.solr.util.plugin.SolrCoreAware;
 
 public class LuxUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
 
+    /** by default, documents are indexed by as many threads as there are processors, up to the size of the indexer pool */
+    public static final int DEFAULT_INDEXING_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+
     SolrIndexConfig indexConfig;
 
+    private int indexingThreads = DEFAULT_INDEXING_THREADS;
+
+    private ExecutorService indexingExecutor;
+
+    private String digestFieldName;
+
+    /**
+     * In addition to the lux index configuration, which is read by {@link SolrIndexConfig}, recognizes
+     * the argument indexing-threads: the number of threads used to parse and index the documents of a 
+     * single update request in parallel.  If less than 2, documents are indexed in the thread handling
+     * the request.  Parallel indexing is never used in SolrCloud, since the distributed update processor
+     * requires each update to be complete before it returns.
+     * 
+     * The argument digest-field names a stored string field in which the MD5 digest of each document's
+     * fields, including its xml, is recorded.  When it is set, added documents whose digest is unchanged 
+     * from the version currently indexed under the same uri are dropped, rather than being indexed again.
+     * The uri field must be the schema's unique key, since the current version is looked up by its key.
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        if (args != null) {
+            Object threads = args.get("indexing-threads");
+            if (threads != null) {
+                indexingThreads = Integer.parseInt(threads.toString());
+            }
+            Object digestField = args.get("digest-field");
+            if (digestField != null) {
+                digestFieldName = digestField.toString();
+            }
+        }
+    }
+
     /** Called when each core is initialized; we ensure that Lux fields are configured.
      */
     @Override
     public void inform(SolrCore core) {
         indexConfig = SolrIndexConfig.registerIndexConfiguration(core);
+        if (digestFieldName != null) {
+            SchemaField digestField = core.getLatestSchema().getFieldOrNull(digestFieldName);
+            if (digestField == null || ! digestField.stored()) {
+                throw new SolrException(ErrorCode.SERVER_ERROR, "digest-field " + digestFieldName + " must be a stored field defined in the schema");
+            }
+            SchemaField uniqueKey = core.getLatestSchema().getUniqueKeyField();
+            String uriFieldName = indexConfig.getIndexConfig().getFieldName(FieldRole.URI);
+            if (uniqueKey == null || ! uniqueKey.getName().equals(uriFieldName)) {
+                throw new SolrException(ErrorCode.SERVER_ERROR, "digest-field requires the schema's uniqueKey to be the uri field, " + uriFieldName);
+            }
+        }
+        if (indexingThreads > 1 && ! core.getCoreDescriptor().getCoreContainer().isZooKeeperAware()) {
+            indexingExecutor = Executors.newFixedThreadPool(indexingThreads, new DefaultSolrThreadFactory("luxIndexer"));
+            core.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore c) {
+                    indexingExecutor.shutdownNow();
+                }
+                @Override
+                public void postClose(SolrCore c) {
+                }
+            });
+        }
     }
 
     @Override
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-        return new LuxUpdateProcessor (indexConfig, req, next);
+        return new LuxUpdateProcessor (indexConfig, req, next, indexingExecutor, indexingThreads * 2, digestFieldName, false);
     }
 
 }
@@ -0,0 +1,166 @@
+package lux.solr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+
+/**
+ * Caches the source text of query modules (both main modules served by {@link AppServerComponent} and
+ * library modules they import), keyed by their resolved URL.  Modules loaded from the classpath (using
+ * the resource: scheme) are cached permanently; modules loaded from files are checked for
+ * modification at most once per check interval.  {@link CompiledQueryCache} uses {@link #isCurrent(String, long)}
+ * to discard compiled queries that import a module that has changed.
+ */
+public class ModuleCache {
+
+    public static final String RESOURCE_SCHEME = "resource:";
+
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    private final ConcurrentHashMap<String, Module> modules;
+
+    private volatile long checkInterval;
+
+    public ModuleCache () {
+        modules = new ConcurrentHashMap<String, Module>();
+        checkInterval = DEFAULT_CHECK_INTERVAL;
+    }
+
+    /**
+     * @param url the resolved URL of a module, which must use either the resource: or the file: scheme.
+     * @return the text of the module, or null if a resource: module was not found.
+     * @throws IOException if an error occurs while reading the module
+     * @throws SolrException NOT_FOUND if a file: module doesn't exist, and FORBIDDEN if it is not a readable file.
+     */
+    public String get (String url) throws IOException {
+        Module module = getModule (url);
+        return module == null ? null : module.text;
+    }
+
+    /**
+     * @param url the resolved URL of a module that was loaded previously
+     * @param lastModified the modification time of the module when it was loaded
+     * @return whether the module is unchanged since then.  The module is checked for modification no
+     * more than once per check interval.
+     */
+    public boolean isCurrent (String url, long lastModified) {
+        Module module;
+        try {
+            module = getModule (url);
+        } catch (IOException e) {
+            return false;
+        } catch (SolrException e) {
+            return false;
+        }
+        return module != null && module.lastModified == lastModified;
+    }
+
+    /**
+     * @param url the resolved URL of a module, which must use either the resource: or the file: scheme.
+     * @return the module, or null if a resource: module was not found.
+     * @throws IOException if an error occurs while reading the module
+     * @throws SolrException NOT_FOUND if a file: module doesn't exist, and FORBIDDEN if it is not a readable file.
+     */
+    Module getModule (String url) throws IOException {
+        Module module = modules.get(url);
+        long now = System.currentTimeMillis();
+        if (module != null) {
+            if (module.lastModified < 0 || checkInterval < 0 || now - module.lastChecked < checkInterval) {
+                return module;
+            }
+        }
+        if (url.startsWith(RESOURCE_SCHEME)) {
+            InputStream in = ModuleCache.class.getResourceAsStream(url.substring(RESOURCE_SCHEME.length()));
+            if (in == null) {
+                return null;
+            }
+            String text;
+            try {
+                text = IOUtils.toString(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            module = new Module(text, -1, now);
+            modules.put(url, module);
+            return module;
+        }
+        File f = new File(new URL(url).getPath());
+        if (!f.exists()) {
+            modules.remove(url);
+            throw new SolrException (ErrorCode.NOT_FOUND, f + " not found");
+        }
+        if (f.isDirectory() || ! f.canRead()) {
+            throw new SolrException (ErrorCode.FORBIDDEN, "access to " + f + " denied by rule");
+        }
+        long lastModified = f.lastModified();
+        if (module != null && module.lastModified == lastModified) {
+            module.lastChecked = now;
+            return module;
+        }
+        InputStream in = new FileInputStream(f);
+        String text;
+        try {
+            text = IOUtils.toString(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        module = new Module(text, lastModified, now);
+        modules.put(url, module);
+        return module;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @param checkInterval the minimum time, in milliseconds, between checks for modification of a
+     * module file.  If negative, files are never re-checked once loaded.
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public int size () {
+        return modules.size();
+    }
+
+    public void clear () {
+        modules.clear();
+    }
+
+    static class Module {
+        final String text;
+        final long lastModified;
+        volatile long lastChecked;
+
+        Module (String text, long lastModified, long lastChecked) {
+            this.text = text;
+            this.lastModified = lastModified;
+            this.lastChecked = lastChecked;
+        }
+
+        String getText () {
+            return text;
+        }
+
+        /**
+         * @return the modification time of the module's file, or -1 for a resource: module
+         */
+        long getLastModified () {
+            return lastModified;
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,345 @@
+package lux.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.IndexableFieldType;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.OutputStreamDataOutput;
+import org.apache.lucene.util.Attribute;
+import org.apache.lucene.util.AttributeImpl;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Serializes the fields of an analyzed Lucene document: their stored values, doc values, and the tokens
+ * (with positions, offsets and payloads) produced by analyzing them, so that the document can be
+ * added to another index without being analyzed again.  {@link LuxPreAnalyzeProcessorFactory} uses this
+ * to analyze the xml of each document once, on the node that receives it, and send the result, in the
+ * {@link #FIELD_NAME} field, to the leader and replicas, whose {@link LuxUpdateProcessor}s, and any
+ * replay of their transaction logs, then index the fields as they are.
+ */
+public class PreAnalyzedDocument {
+
+    /** the name of the SolrInputDocument field holding the serialized fields */
+    public static final String FIELD_NAME = "lux_preanalyzed";
+
+    private static final int VERSION = 1;
+
+    private static final int STORED = 1, INDEXED = 2, DOC_VALUES = 4;
+
+    private static final int STRING = 0, BINARY = 1, INT = 2, LONG = 3, FLOAT = 4, DOUBLE = 5;
+
+    private static final int TERM_VECTORS = 1, TERM_VECTOR_OFFSETS = 2, TERM_VECTOR_POSITIONS = 4, TERM_VECTOR_PAYLOADS = 8, OMIT_NORMS = 16;
+
+    private PreAnalyzedDocument () {
+    }
+
+    /**
+     * @param fields the fields to serialize
+     * @param analyzer the analyzer that the index would apply to the fields
+     * @return the serialized fields
+     * @throws IOException if an error occurs analyzing a field
+     */
+    public static byte[] serialize (Iterable<IndexableField> fields, Analyzer analyzer) throws IOException {
+        ArrayList<IndexableField> fieldList = new ArrayList<IndexableField>();
+        for (IndexableField field : fields) {
+            fieldList.add(field);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStreamDataOutput out = new OutputStreamDataOutput(bytes);
+        out.writeVInt(VERSION);
+        out.writeVInt(fieldList.size());
+        for (IndexableField field : fieldList) {
+            IndexableFieldType type = field.fieldType();
+            int kind = (type.stored() ? STORED : 0) | (type.indexed() ? INDEXED : 0) | (type.docValueType() != null ? DOC_VALUES : 0);
+            out.writeString(field.name());
+            out.writeByte((byte) kind);
+            if (type.stored()) {
+                writeStoredValue(out, field);
+            }
+            if (type.indexed()) {
+                writeTokens(out, field, type, analyzer);
+            }
+            if (type.docValueType() != null) {
+                out.writeByte((byte) type.docValueType().ordinal());
+                if (type.docValueType() == DocValuesType.NUMERIC) {
+                    out.writeLong(field.numericValue().longValue());
+                } else {
+                    writeBytes(out, field.binaryValue());
+                }
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeStoredValue (OutputStreamDataOutput out, IndexableField field) throws IOException {
+        Number number = field.numericValue();
+        if (number != null) {
+            if (number instanceof Integer) {
+                out.writeByte((byte) INT);
+                out.writeInt(number.intValue());
+            } else if (number instanceof Long) {
+                out.writeByte((byte) LONG);
+                out.writeLong(number.longValue());
+            } else if (number instanceof Float) {
+                out.writeByte((byte) FLOAT);
+                out.writeInt(Float.floatToIntBits(number.floatValue()));
+            } else {
+                out.writeByte((byte) DOUBLE);
+                out.writeLong(Double.doubleToLongBits(number.doubleValue()));
+            }
+        } else if (field.binaryValue() != null) {
+            out.writeByte((byte) BINARY);
+            writeBytes(out, field.binaryValue());
+        } else {
+            out.writeByte((byte) STRING);
+            out.writeString(field.stringValue());
+        }
+    }
+
+    private static void writeTokens (OutputStreamDataOutput out, IndexableField field, IndexableFieldType type, Analyzer analyzer) throws IOException {
+        int flags = (type.storeTermVectors() ? TERM_VECTORS : 0) |
+                (type.storeTermVectorOffsets() ? TERM_VECTOR_OFFSETS : 0) |
+                (type.storeTermVectorPositions() ? TERM_VECTOR_POSITIONS : 0) |
+                (type.storeTermVectorPayloads() ? TERM_VECTOR_PAYLOADS : 0) |
+                (type.omitNorms() ? OMIT_NORMS : 0);
+        out.writeByte((byte) flags);
+        out.writeByte((byte) type.indexOptions().ordinal());
+        out.writeInt(Float.floatToIntBits(field.boost()));
+        TokenStream tokens = field.tokenStream(analyzer);
+        try {
+            TermToBytesRefAttribute termAtt = tokens.getAttribute(TermToBytesRefAttribute.class);
+            PositionIncrementAttribute posIncAtt = tokens.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offsetAtt = tokens.addAttribute(OffsetAttribute.class);
+            PayloadAttribute payloadAtt = tokens.hasAttribute(PayloadAttribute.class) ? tokens.getAttribute(PayloadAttribute.class) : null;
+            BytesRef term = termAtt.getBytesRef();
+            tokens.reset();
+            while (tokens.incrementToken()) {
+                termAtt.fillBytesRef();
+                // each token is preceded by a 1; the list ends with a 0
+                out.writeByte((byte) 1);
+                writeBytes(out, term);
+                out.writeVInt(posIncAtt.getPositionIncrement());
+                out.writeVInt(offsetAtt.startOffset());
+                out.writeVInt(offsetAtt.endOffset() - offsetAtt.startOffset());
+                BytesRef payload = payloadAtt == null ? null : payloadAtt.getPayload();
+                if (payload == null) {
+                    out.writeVInt(0);
+                } else {
+                    out.writeVInt(payload.length + 1);
+                    out.writeBytes(payload.bytes, payload.offset, payload.length);
+                }
+            }
+            tokens.end();
+        } finally {
+            tokens.close();
+        }
+        out.writeByte((byte) 0);
+    }
+
+    private static void writeBytes (OutputStreamDataOutput out, BytesRef bytes) throws IOException {
+        out.writeVInt(bytes.length);
+        out.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    /**
+     * @param bytes fields serialized by {@link #serialize(Iterable, Analyzer)}
+     * @return fields that may be added to a document; a field that was both stored and indexed is
+     * represented by two fields: one stored, and one indexed, whose tokens are those that were serialized.
+     */
+    public static List<IndexableField> deserialize (byte[] bytes) {
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes);
+        int version = in.readVInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("unsupported pre-analyzed document version: " + version);
+        }
+        int count = in.readVInt();
+        ArrayList<IndexableField> fields = new ArrayList<IndexableField>(count);
+        for (int i = 0; i < count; i++) {
+            String name = in.readString();
+            int kind = in.readByte();
+            if ((kind & STORED) != 0) {
+                fields.add(readStoredField(in, name));
+            }
+            if ((kind & INDEXED) != 0) {
+                fields.add(readIndexedField(in, name));
+            }
+            if ((kind & DOC_VALUES) != 0) {
+                fields.add(readDocValuesField(in, name));
+            }
+        }
+        return fields;
+    }
+
+    private static Field readStoredField (ByteArrayDataInput in, String name) {
+        switch (in.readByte()) {
+        case INT: return new StoredField(name, in.readInt());
+        case LONG: return new StoredField(name, in.readLong());
+        case FLOAT: return new StoredField(name, Float.intBitsToFloat(in.readInt()));
+        case DOUBLE: return new StoredField(name, Double.longBitsToDouble(in.readLong()));
+        case BINARY: return new StoredField(name, readBytes(in));
+        default: return new StoredField(name, in.readString());
+        }
+    }
+
+    private static Field readIndexedField (ByteArrayDataInput in, String name) {
+        int flags = in.readByte();
+        FieldType type = new FieldType();
+        type.setIndexed(true);
+        // a field whose value is a TokenStream must be "tokenized", although its tokens are already known
+        type.setTokenized(true);
+        type.setStoreTermVectors((flags & TERM_VECTORS) != 0);
+        type.setStoreTermVectorOffsets((flags & TERM_VECTOR_OFFSETS) != 0);
+        type.setStoreTermVectorPositions((flags & TERM_VECTOR_POSITIONS) != 0);
+        type.setStoreTermVectorPayloads((flags & TERM_VECTOR_PAYLOADS) != 0);
+        type.setOmitNorms((flags & OMIT_NORMS) != 0);
+        type.setIndexOptions(IndexOptions.values()[in.readByte()]);
+        type.freeze();
+        float boost = Float.intBitsToFloat(in.readInt());
+        ReplayTokenStream tokens = new ReplayTokenStream();
+        while (in.readByte() != 0) {
+            BytesRef term = readBytes(in);
+            int posInc = in.readVInt();
+            int start = in.readVInt();
+            int end = start + in.readVInt();
+            int payloadLength = in.readVInt();
+            BytesRef payload = null;
+            if (payloadLength > 0) {
+                payload = new BytesRef(payloadLength - 1);
+                in.readBytes(payload.bytes, 0, payloadLength - 1);
+                payload.length = payloadLength - 1;
+            }
+            tokens.add(term, posInc, start, end, payload);
+        }
+        Field field = new Field(name, tokens, type);
+        if (! type.omitNorms()) {
+            field.setBoost(boost);
+        }
+        return field;
+    }
+
+    private static Field readDocValuesField (ByteArrayDataInput in, String name) {
+        DocValuesType type = DocValuesType.values()[in.readByte()];
+        switch (type) {
+        case NUMERIC: return new NumericDocValuesField(name, in.readLong());
+        case BINARY: return new BinaryDocValuesField(name, readBytes(in));
+        case SORTED: return new SortedDocValuesField(name, readBytes(in));
+        default: return new SortedSetDocValuesField(name, readBytes(in));
+        }
+    }
+
+    private static BytesRef readBytes (ByteArrayDataInput in) {
+        int length = in.readVInt();
+        BytesRef bytes = new BytesRef(length);
+        in.readBytes(bytes.bytes, 0, length);
+        bytes.length = length;
+        return bytes;
+    }
+
+    /**
+     * Replays a list of tokens whose terms are given as bytes.
+     */
+    static final class ReplayTokenStream extends TokenStream {
+
+        private final ArrayList<Object[]> tokens = new ArrayList<Object[]>();
+        private final BytesTermAttribute termAtt;
+        private final PositionIncrementAttribute posIncAtt;
+        private final OffsetAttribute offsetAtt;
+        private final PayloadAttribute payloadAtt;
+        private int next;
+
+        ReplayTokenStream () {
+            addAttributeImpl(new BytesTermAttributeImpl());
+            termAtt = addAttribute(BytesTermAttribute.class);
+            posIncAtt = addAttribute(PositionIncrementAttribute.class);
+            offsetAtt = addAttribute(OffsetAttribute.class);
+            payloadAtt = addAttribute(PayloadAttribute.class);
+        }
+
+        void add (BytesRef term, int posInc, int start, int end, BytesRef payload) {
+            tokens.add(new Object[] { term, posInc, start, end, payload });
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= tokens.size()) {
+                return false;
+            }
+            clearAttributes();
+            Object[] token = tokens.get(next++);
+            termAtt.setBytesRef((BytesRef) token[0]);
+            posIncAtt.setPositionIncrement((Integer) token[1]);
+            offsetAtt.setOffset((Integer) token[2], (Integer) token[3]);
+            payloadAtt.setPayload((BytesRef) token[4]);
+            return true;
+        }
+
+        @Override
+        public void reset () throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+
+    /**
+     * A term given as bytes, rather than as characters to be converted to bytes.
+     */
+    public interface BytesTermAttribute extends TermToBytesRefAttribute, Attribute {
+        void setBytesRef (BytesRef bytes);
+    }
+
+    public static final class BytesTermAttributeImpl extends AttributeImpl implements BytesTermAttribute {
+
+        // the indexer retrieves this once, and reads each term from it, so it is never replaced
+        private final BytesRef bytes = new BytesRef();
+
+        @Override
+        public int fillBytesRef() {
+            return bytes.hashCode();
+        }
+
+        @Override
+        public BytesRef getBytesRef() {
+            return bytes;
+        }
+
+        @Override
+        public void setBytesRef(BytesRef term) {
+            bytes.copyBytes(term);
+        }
+
+        @Override
+        public void clear() {
+            bytes.length = 0;
+        }
+
+        @Override
+        public void copyTo(AttributeImpl target) {
+            ((BytesTermAttribute) target).setBytesRef(bytes);
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,18 @@
+package lux.solr;
+
+import lux.exception.LuxException;
+
+/**
+ * Thrown to abandon an evaluation whose {@link CancellationToken} has expired.
+ */
+public class QueryCancelledException extends LuxException {
+
+    public QueryCancelledException () {
+        super ("query evaluation was cancelled, or exceeded its allowed time");
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,157 @@
+package lux.solr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Accumulates the serialized (UTF-8) bytes of all the node results of a single request in a list of
+ * fixed-size chunks that are borrowed from, and returned to, a pool held by {@link SolrIndexConfig}.
+ * Each result is represented by a {@link Segment} of the buffer, which can be written directly to the
+ * response's output stream, so nodes are serialized once, and never converted to Strings, unless
+ * some caller asks for one.  Chunks are never reallocated, so segments remain valid until the buffer
+ * is {@link #release() released}.
+ */
+public class ResultBuffer extends OutputStream {
+
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    static final Charset UTF8 = Charset.forName("utf-8");
+
+    private final SolrIndexConfig pool;
+    private final ArrayList<byte[]> chunks;
+    private byte[] current;
+    private int pos;
+    private long size;
+
+    ResultBuffer (SolrIndexConfig pool) {
+        this.pool = pool;
+        chunks = new ArrayList<byte[]>();
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || pos == current.length) {
+            nextChunk();
+        }
+        current[pos++] = (byte) b;
+        ++size;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || pos == current.length) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(b, off, current, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void nextChunk () {
+        current = pool.checkoutBufferChunk();
+        chunks.add(current);
+        pos = 0;
+    }
+
+    /**
+     * The buffer is not closed by serializers that write to it; its chunks are freed by {@link #release()}.
+     */
+    @Override
+    public void close () {
+    }
+
+    /**
+     * @return the total number of bytes written to the buffer
+     */
+    public long size () {
+        return size;
+    }
+
+    /**
+     * @param start the offset of the first byte of the segment
+     * @return a segment extending from start to the current end of the buffer
+     */
+    public Segment segmentFrom (long start) {
+        return new Segment(start, (int) (size - start));
+    }
+
+    /**
+     * Returns the buffer's chunks to the pool.  Any segments of the buffer become invalid.
+     */
+    public void release () {
+        for (byte[] chunk : chunks) {
+            pool.returnBufferChunk(chunk);
+        }
+        chunks.clear();
+        current = null;
+        size = pos = 0;
+    }
+
+    /**
+     * A single serialized result: a contiguous range of bytes in the buffer.
+     */
+    public class Segment {
+
+        private final long start;
+        private final int length;
+
+        Segment (long start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * @return the length of the segment in bytes
+         */
+        public int length () {
+            return length;
+        }
+
+        /**
+         * writes the bytes of the segment to the output stream without copying them
+         * @param out the stream to write to
+         * @throws IOException if an error occurs writing to the stream
+         */
+        public void writeTo (OutputStream out) throws IOException {
+            int chunk = (int) (start / CHUNK_SIZE);
+            int off = (int) (start % CHUNK_SIZE);
+            int remaining = length;
+            while (remaining > 0) {
+                int n = Math.min(remaining, CHUNK_SIZE - off);
+                out.write(chunks.get(chunk++), off, n);
+                remaining -= n;
+                off = 0;
+            }
+        }
+
+        /**
+         * @return the contents of the segment decoded as a String
+         */
+        @Override
+        public String toString () {
+            byte[] bytes = new byte[length];
+            int chunk = (int) (start / CHUNK_SIZE);
+            int off = (int) (start % CHUNK_SIZE);
+            int copied = 0;
+            while (copied < length) {
+                int n = Math.min(length - copied, CHUNK_SIZE - off);
+                System.arraycopy(chunks.get(chunk++), off, bytes, copied, n);
+                copied += n;
+                off = 0;
+            }
+            return new String (bytes, UTF8);
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
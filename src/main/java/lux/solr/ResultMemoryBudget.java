@@ -0,0 +1,99 @@
+package lux.solr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Limits the total memory occupied by the buffered results of all the requests in flight on a core.
+ * Each request reserves bytes as it accumulates results, and releases them once its response has been
+ * written.  Also counts the requests whose results were truncated because they exceeded their own
+ * limit, and those that were cut short because the shared budget was exhausted.
+ */
+public class ResultMemoryBudget {
+
+    /** by default, all the requests in flight may use up to 1/4 of the heap for results */
+    public static final long DEFAULT_LIMIT = Runtime.getRuntime().maxMemory() / 4;
+
+    private volatile long limit;
+
+    private final AtomicLong reserved;
+
+    private final AtomicLong truncations;
+
+    private final AtomicLong rejections;
+
+    public ResultMemoryBudget (long limit) {
+        this.limit = limit;
+        reserved = new AtomicLong();
+        truncations = new AtomicLong();
+        rejections = new AtomicLong();
+    }
+
+    /**
+     * Reserve space for results.  If there is not enough space remaining, nothing is reserved, and the
+     * rejection is counted.
+     * @param bytes the number of bytes to reserve
+     * @return whether the bytes were reserved
+     */
+    public boolean reserve (long bytes) {
+        for (;;) {
+            long current = reserved.get();
+            if (current + bytes > limit) {
+                rejections.incrementAndGet();
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param bytes the number of bytes to return to the budget
+     */
+    public void release (long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+
+    /**
+     * records that a request's results were truncated because they exceeded the request's own limit
+     */
+    public void countTruncation () {
+        truncations.incrementAndGet();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public void setLimit(long limit) {
+        this.limit = limit;
+    }
+
+    public long getReserved () {
+        return reserved.get();
+    }
+
+    public long getTruncations () {
+        return truncations.get();
+    }
+
+    public long getRejections () {
+        return rejections.get();
+    }
+
+    public NamedList<Object> getStatistics () {
+        NamedList<Object> stats = new NamedList<Object>();
+        stats.add("limit", limit);
+        stats.add("reserved", reserved.get());
+        stats.add("truncations", truncations.get());
+        stats.add("rejections", rejections.get());
+        return stats;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -1,7 +1,9 @@
 package lux.solr;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -14,11 +16,9 @@ import lux.index.XmlIndexer;
 import lux.xml.tinybin.TinyBinary;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.tree.tiny.TinyNodeImpl;
 
-import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
@@ -27,6 +27,7 @@ import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.request.SolrQueryRequestBase;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.UpdateCommand;
 import org.apache.solr.update.UpdateHandler;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
 import org.apache.solr.update.processor.UpdateRequestProcessorChain;
@@ -34,21 +35,31 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Used for updates (write, delete and commit) from within XQuery (lux:insert) and XSLT (xsl:result-document)
+ * In cloud mode, writes and deletes are buffered, and sent to the distributed update chain in batches: when the
+ * buffer fills (see {@link XQueryComponent#getCloudWriteBatchSize()} and {@link XQueryComponent#getCloudWriteBatchBudget()}),
+ * on commit, and when the request completes.
  * TODO: refactor into two classes: one for cloud, one for local?
  */
 public class SolrDocWriter implements DocWriter {
 
     private final SolrCore core;
+    private final SolrQueryContext context;
     private final XQueryComponent xqueryComponent;
     private final String uriFieldName;
     private final String xmlFieldName;
+    // cloud updates waiting to be sent, in the order they were made
+    private final List<UpdateCommand> pending;
+    private long pendingBytes;
+    private SolrQueryRequest cloudRequest;
 
-    SolrDocWriter(XQueryComponent xQueryComponent, SolrCore core) {
+    SolrDocWriter(SolrQueryContext context, SolrCore core) {
         this.core = core;
-        this.xqueryComponent = xQueryComponent;
-        IndexConfiguration indexConfig = xQueryComponent.getSolrIndexConfig().getIndexConfig();
+        this.context = context;
+        this.xqueryComponent = context.getQueryComponent();
+        IndexConfiguration indexConfig = xqueryComponent.getSolrIndexConfig().getIndexConfig();
         uriFieldName = indexConfig.getFieldName(FieldRole.URI);
         xmlFieldName = indexConfig.getFieldName(FieldRole.XML_STORE);
+        pending = new ArrayList<UpdateCommand>();
     }
 
     @Override
@@ -60,20 +71,13 @@ public class SolrDocWriter implements DocWriter {
         SolrInputDocument solrDoc = new SolrInputDocument();
         solrDoc.addField(uriFieldName, uri);
         if (isCloud()) {
-            // TODO: write as binary, but we need to enable the binary update request writer for this
-            // TinyBinary tinybin = new TinyBinary(((TinyNodeImpl)node).getTree());
-            // solrDoc.addField(xmlFieldName, tinybin.getByteBuffer().array());
-            Serializer serializer = xqueryComponent.solrIndexConfig.checkoutSerializer();
+            // Send the document as TinyBinary, which the distributed update processor forwards using
+            // javabin, so that the receiving LuxUpdateProcessor can index the tree without parsing XML
             try {
-                String xmlString = serializer.serializeNodeToString(new XdmNode(node));
-                solrDoc.addField(xmlFieldName,  xmlString);
+                solrDoc.addField(xmlFieldName, xqueryComponent.toTinyBinary(new XdmNode(node)));
             } catch (SaxonApiException e) {
                 throw new LuxException (e);
-            } finally {
-                xqueryComponent.solrIndexConfig.returnSerializer(serializer);
             }
-            // TODO -- if we can determine this doc only gets added locally??
-            // solrDoc.addField(xmlFieldName, node);
         }
         else if (updateHandler.getUpdateLog() != null) {
             if (node instanceof TinyNodeImpl) {
@@ -92,22 +96,106 @@ public class SolrDocWriter implements DocWriter {
     }
 
     private void writeToCloud (SolrInputDocument solrDoc, String uri) {
-        ArrayList<String> urls = xqueryComponent.getShardURLs(true);
-        LoggerFactory.getLogger(getClass()).debug ("writing " + uri + " to cloud at " + urls); 
-        SolrQueryResponse rsp = new SolrQueryResponse();
-        SolrQueryRequest req = UpdateDocCommand.makeSolrRequest(core);
-        ((ModifiableSolrParams)req.getParams()).add(ShardParams.SHARDS, urls.toArray(new String[urls.size()]));
-        UpdateRequest updateReq = new UpdateRequest();
-        updateReq.add(solrDoc);
-        UpdateDocCommand cmd = new UpdateDocCommand(req, solrDoc, null, uri);
+        LoggerFactory.getLogger(getClass()).debug ("buffering write of {} to cloud", uri);
+        UpdateDocCommand cmd = new UpdateDocCommand(getCloudRequest(), solrDoc, null, uri);
+        Object xml = solrDoc.getFieldValue(xmlFieldName);
+        bufferCloudCommand (cmd, xml == null ? 0 : ((ByteBuffer) xml).remaining());
+    }
+
+    private SolrQueryRequest getCloudRequest () {
+        if (cloudRequest == null) {
+            List<String> urls = context.getShardURLs(true);
+            cloudRequest = UpdateDocCommand.makeSolrRequest(core);
+            ((ModifiableSolrParams)cloudRequest.getParams()).add(ShardParams.SHARDS, urls.toArray(new String[urls.size()]));
+        }
+        return cloudRequest;
+    }
+
+    private void bufferCloudCommand (UpdateCommand cmd, long size) {
+        pending.add(cmd);
+        pendingBytes += size;
+        if (pending.size() >= xqueryComponent.getCloudWriteBatchSize() || pendingBytes >= xqueryComponent.getCloudWriteBatchBudget()) {
+            flush ();
+        }
+    }
+
+    /**
+     * Sends any buffered cloud updates, in the order they were made, through a single instance of the lux
+     * update chain, which distributes them to the shards.
+     * @throws LuxException listing the uri of each document whose update failed, if any did.  All of the
+     * buffered updates are attempted regardless.  Failures that are only reported once the whole batch has
+     * been sent to the other nodes can't be attributed to a single update, so they list every update in
+     * the batch.
+     */
+    public void flush () {
+        if (pending.isEmpty()) {
+            return;
+        }
+        LoggerFactory.getLogger(getClass()).debug ("sending {} updates to cloud", pending.size());
+        StringBuilder errors = new StringBuilder();
         UpdateRequestProcessorChain updateChain = xqueryComponent.getCore().getUpdateProcessingChain("lux-update-chain");
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        UpdateRequestProcessor processor = updateChain.createProcessor(getCloudRequest(), rsp);
+        List<UpdateCommand> batch = new ArrayList<UpdateCommand>(pending);
+        try {
+            for (UpdateCommand cmd : batch) {
+                try {
+                    if (cmd instanceof DeleteUpdateCommand) {
+                        processor.processDelete((DeleteUpdateCommand) cmd);
+                    } else {
+                        processor.processAdd((UpdateDocCommand) cmd);
+                    }
+                } catch (IOException e) {
+                    appendError (errors, describe(cmd), e);
+                } catch (RuntimeException e) {
+                    appendError (errors, describe(cmd), e);
+                }
+            }
+        } finally {
+            pending.clear();
+            pendingBytes = 0;
+        }
+        // the distributed update processor reports the failures of updates it forwarded to other nodes here
+        Exception finishError = null;
         try {
-            UpdateRequestProcessor processor = updateChain.createProcessor(req, rsp);
-            processor.processAdd(cmd);
             processor.finish();
         } catch (IOException e) {
-            throw new LuxException (e);
+            finishError = e;
+        } catch (RuntimeException e) {
+            finishError = e;
+        }
+        if (finishError == null) {
+            finishError = rsp.getException();
+        }
+        if (finishError != null) {
+            StringBuilder updates = new StringBuilder();
+            for (UpdateCommand cmd : batch) {
+                if (updates.length() > 0) {
+                    updates.append(", ");
+                }
+                updates.append(describe(cmd));
+            }
+            appendError (errors, "batch (" + updates + ")", finishError);
         }
+        if (errors.length() > 0) {
+            throw new LuxException (errors.toString());
+        }
+    }
+
+    private static String describe (UpdateCommand cmd) {
+        if (cmd instanceof DeleteUpdateCommand) {
+            DeleteUpdateCommand delete = (DeleteUpdateCommand) cmd;
+            return "delete " + (delete.id != null ? delete.id : delete.query);
+        }
+        return "write " + ((UpdateDocCommand) cmd).getPrintableId();
+    }
+
+    private static void appendError (StringBuilder errors, String update, Exception e) {
+        if (errors.length() > 0) {
+            errors.append('\n');
+        }
+        errors.append (update).append(": ");
+        errors.append (e.getMessage() != null ? e.getMessage() : e.toString());
     }
     
     private void writeLocal (SolrInputDocument solrDoc, NodeInfo node, String uri) {
@@ -133,6 +221,12 @@ public class SolrDocWriter implements DocWriter {
 
     @Override
     public void delete(String uri) {
+        if (isCloud()) {
+            DeleteUpdateCommand cmd = new DeleteUpdateCommand(getCloudRequest());
+            cmd.id = uri;
+            bufferCloudCommand (cmd, 0);
+            return;
+        }
         DeleteUpdateCommand cmd = new DeleteUpdateCommand(makeSolrQueryRequest());
         /*
         cmd.fromCommitted = true;
@@ -140,28 +234,21 @@ public class SolrDocWriter implements DocWriter {
         */
         cmd.id = uri;
         try {
-            if (isCloud()) {
-                deleteCloud(cmd);
-            } else {
-                core.getUpdateHandler().delete(cmd);
-            }
+            core.getUpdateHandler().delete(cmd);
         } catch (IOException e) {
             throw new LuxException (e);
         }
 
     }
-    
-    private void deleteCloud (DeleteUpdateCommand cmd) throws IOException {
-        UpdateRequestProcessorChain updateChain = xqueryComponent.getCore().getUpdateProcessingChain("lux-update-chain");
-            SolrQueryResponse rsp = new SolrQueryResponse();
-            SolrQueryRequest req = UpdateDocCommand.makeSolrRequest(core);
-            UpdateRequestProcessor processor = updateChain.createProcessor(req, rsp);
-            processor.processDelete(cmd);
-            processor.finish();
-    }
 
     @Override
     public void deleteAll() {
+        if (isCloud()) {
+            DeleteUpdateCommand cmd = new DeleteUpdateCommand(getCloudRequest());
+            cmd.query = "*:*";
+            bufferCloudCommand (cmd, 0);
+            return;
+        }
         DeleteUpdateCommand cmd = new DeleteUpdateCommand( makeSolrQueryRequest());
         /*
         cmd.fromCommitted = true;
@@ -169,11 +256,7 @@ public class SolrDocWriter implements DocWriter {
         */
         cmd.query = "*:*";
         try {
-            if (isCloud()) {
-                deleteCloud(cmd);
-            } else {
-                core.getUpdateHandler().deleteByQuery(cmd);
-            }
+            core.getUpdateHandler().deleteByQuery(cmd);
         } catch (IOException e) {
             throw new LuxException(e);
         }
@@ -183,8 +266,12 @@ public class SolrDocWriter implements DocWriter {
         return new SolrQueryRequestBase(core, new ModifiableSolrParams()) {};
     }
 
+    /**
+     * Sends any buffered updates, and marks the request as needing a commit once it completes.
+     */
     @Override
     public void commit(Evaluator eval) {
+        flush ();
         SolrQueryContext context = (SolrQueryContext) eval.getQueryContext();
         context.setCommitPending(true);
     }
@@ -199,7 +286,7 @@ public class SolrDocWriter implements DocWriter {
     }
     
     private boolean isCloud () {
-        return xqueryComponent.getCurrentShards() != null;
+        return context.getShards() != null;
     }
 
 }
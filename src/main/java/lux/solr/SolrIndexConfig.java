@@ -7,6 +7,9 @@ import java.net.URL;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lux.Compiler;
 import lux.exception.LuxException;
@@ -19,6 +22,8 @@ import lux.index.field.FieldDefinition;
 import lux.index.field.FieldDefinition.Type;
 import lux.index.field.XmlTextField;
 import lux.solr.field.SolrXPathField;
+import lux.solr.field.XPathFieldEvaluator;
+import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -54,14 +59,35 @@ public class SolrIndexConfig implements SolrInfoMBean {
     private NamedList<String> xpathFieldConfig;
     private Compiler compiler;
     private ArrayBlockingQueue<XmlIndexer> indexerPool;
-    private ArrayBlockingQueue<Serializer> serializerPool;
+    private final ConcurrentLinkedQueue<Serializer> serializerPool;
+    // the number of serializers in the pool, the number checked out, and the most ever checked out at once
+    private final AtomicInteger serializersPooled;
+    private final AtomicInteger serializersInUse;
+    private final AtomicInteger serializersMaxInUse;
+    private ArrayBlockingQueue<byte[]> bufferChunkPool;
     private IndexSchema schema;
+    private final CompiledQueryCache compiledQueryCache;
+    private final ModuleCache moduleCache;
+    private final ResultMemoryBudget resultMemoryBudget;
+    private CommitScheduler commitScheduler;
+    private XPathFieldEvaluator xpathFieldEvaluator;
+    private final AtomicLong unchangedDocuments;
+    private final AtomicInteger generation;
     private final Logger logger;
     
     public SolrIndexConfig (final IndexConfiguration indexConfig, NamedList<?> args) {
         this.indexConfig = indexConfig;
         indexerPool = new ArrayBlockingQueue<XmlIndexer>(8);
-        serializerPool = new ArrayBlockingQueue<Serializer>(8);
+        serializerPool = new ConcurrentLinkedQueue<Serializer>();
+        serializersPooled = new AtomicInteger();
+        serializersInUse = new AtomicInteger();
+        serializersMaxInUse = new AtomicInteger();
+        bufferChunkPool = new ArrayBlockingQueue<byte[]>(64);
+        moduleCache = new ModuleCache();
+        compiledQueryCache = new CompiledQueryCache(CompiledQueryCache.DEFAULT_SIZE, moduleCache);
+        resultMemoryBudget = new ResultMemoryBudget(ResultMemoryBudget.DEFAULT_LIMIT);
+        generation = new AtomicInteger();
+        unchangedDocuments = new AtomicLong();
         logger = LoggerFactory.getLogger(getClass());
         if (args != null) {
             applySolrConfig(args);
@@ -73,6 +99,50 @@ public class SolrIndexConfig implements SolrInfoMBean {
         return compiler;
     }
     
+    /**
+     * @return the cache of compiled queries shared by all the XQuery components of this core
+     */
+    public CompiledQueryCache getCompiledQueryCache () {
+        return compiledQueryCache;
+    }
+    
+    /**
+     * @return the cache of query module source text shared by all the XQuery components of this core
+     */
+    public ModuleCache getModuleCache () {
+        return moduleCache;
+    }
+    
+    /**
+     * @return the budget limiting the memory used by the results of all the requests in flight on this core
+     */
+    public ResultMemoryBudget getResultMemoryBudget () {
+        return resultMemoryBudget;
+    }
+    
+    /**
+     * @return the scheduler that performs the commits requested by queries on this core
+     */
+    public CommitScheduler getCommitScheduler () {
+        return commitScheduler;
+    }
+    
+    /**
+     * records that an added document was not indexed, because its content was unchanged
+     */
+    public void countUnchangedDocument () {
+        unchangedDocuments.incrementAndGet();
+    }
+    
+    /**
+     * @return a number that changes whenever the index configuration changes, so that compiled queries, 
+     * whose optimizations depend on it, can be invalidated.  Compiled queries that import a changed module
+     * are invalidated individually by {@link CompiledQueryCache}.
+     */
+    public int getGeneration () {
+        return generation.get();
+    }
+    
     public XmlIndexer checkoutXmlIndexer () {
         // In tests it didn't seem to make any appreciable difference whether this
         // pool was present or not, but it salves my conscience
@@ -85,13 +155,31 @@ public class SolrIndexConfig implements SolrInfoMBean {
     }
     
     public void returnXmlIndexer (XmlIndexer doneWithIt) {
+        if (xpathFieldEvaluator != null) {
+            // release the values computed for the indexer's last document
+            xpathFieldEvaluator.clear();
+        }
         indexerPool.offer(doneWithIt);
         // if the pool was full, we just drop the indexer as garbage
     }
     
+    /**
+     * The serializer pool never blocks; it grows to hold as many serializers as have ever been in use
+     * at one time, which is bounded by the number of threads handling requests.
+     * @return a serializer, which should be returned to the pool using {@link #returnSerializer(Serializer)}
+     */
     public Serializer checkoutSerializer() {
+        int inUse = serializersInUse.incrementAndGet();
+        int maxInUse;
+        while (inUse > (maxInUse = serializersMaxInUse.get())) {
+            if (serializersMaxInUse.compareAndSet(maxInUse, inUse)) {
+                break;
+            }
+        }
         Serializer serializer = serializerPool.poll();
-        if (serializer == null) {
+        if (serializer != null) {
+            serializersPooled.decrementAndGet();
+        } else {
             serializer = new Serializer();
             serializer.setOutputProperty(Serializer.Property.ENCODING, "utf-8");
             serializer.setOutputProperty(Serializer.Property.BYTE_ORDER_MARK, "no");
@@ -101,8 +189,33 @@ public class SolrIndexConfig implements SolrInfoMBean {
     }
     
     public void returnSerializer (Serializer doneWithIt) {
-        serializerPool.offer(doneWithIt);
-        // if the pool was full, we just drop the serializer
+        serializersInUse.decrementAndGet();
+        if (serializersPooled.incrementAndGet() <= serializersMaxInUse.get()) {
+            serializerPool.offer(doneWithIt);
+        } else {
+            // if the pool was full, we just drop the serializer
+            serializersPooled.decrementAndGet();
+        }
+    }
+    
+    /**
+     * @return a new, empty buffer for serialized results, whose storage is drawn from this config's pool
+     */
+    public ResultBuffer newResultBuffer () {
+        return new ResultBuffer(this);
+    }
+    
+    byte[] checkoutBufferChunk () {
+        byte[] chunk = bufferChunkPool.poll();
+        if (chunk == null) {
+            chunk = new byte[ResultBuffer.CHUNK_SIZE];
+        }
+        return chunk;
+    }
+    
+    void returnBufferChunk (byte[] doneWithIt) {
+        bufferChunkPool.offer(doneWithIt);
+        // if the pool was full, we just drop the chunk
     }
     
     public static SolrIndexConfig registerIndexConfiguration (SolrCore core) {
@@ -158,6 +271,7 @@ public class SolrIndexConfig implements SolrInfoMBean {
             for (Entry<String,String> f : fields) {
                 xpathFieldConfig.add(f.getKey(), f.getValue());
             }
+            generation.incrementAndGet();
         }
     }
     
@@ -199,6 +313,9 @@ public class SolrIndexConfig implements SolrInfoMBean {
 
     public void inform(SolrCore core) {
         schema = core.getLatestSchema();
+        if (commitScheduler == null) {
+            commitScheduler = new CommitScheduler(core);
+        }
         // XML_STORE is not listed explicitly by the indexer
         informField (indexConfig.getField(FieldRole.XML_STORE), core);
         // This must be run before informField() registers default analyzers with the Schema
@@ -217,6 +334,7 @@ public class SolrIndexConfig implements SolrInfoMBean {
         }
         // must call this after making changes to the field map:
         schema.refreshAnalyzers();
+        generation.incrementAndGet();
     }
 
     private void informField (FieldDefinition xmlField, SolrCore core) {
@@ -281,13 +399,21 @@ public class SolrIndexConfig implements SolrInfoMBean {
 
     /** Add the xpathFields to the indexConfig using information about the field drawn from the schema. */
     private void addXPathFields() {
+        // the fields' expressions are compiled once, here, and shared by all the indexers
+        XPathFieldEvaluator evaluator = new XPathFieldEvaluator(compiler.getProcessor(), indexConfig.getNamespaceMap());
+        xpathFieldEvaluator = evaluator;
         for (Entry<String,String> f : xpathFieldConfig) {
             SchemaField field = schema.getField(f.getKey());
             FieldType fieldType = field.getType();
             if (fieldType == null) {
                 throw new SolrException(ErrorCode.SERVER_ERROR, "Field " + f.getKey() + " declared in lux config, but not defined in schema");
             }
-            SolrXPathField xpathField = new SolrXPathField(f.getKey(), f.getValue(), fieldType.getAnalyzer(), field.stored() ? Store.YES : Store.NO, field);
+            SolrXPathField xpathField;
+            try {
+                xpathField = new SolrXPathField(f.getKey(), f.getValue(), fieldType.getAnalyzer(), field.stored() ? Store.YES : Store.NO, field, evaluator);
+            } catch (SaxonApiException e) {
+                throw new SolrException(ErrorCode.SERVER_ERROR, "Invalid xpath for field " + f.getKey() + ": " + f.getValue(), e);
+            }
             indexConfig.addField(xpathField);
         }
     }
@@ -443,7 +569,21 @@ public class SolrIndexConfig implements SolrInfoMBean {
 
     @Override
     public NamedList<?> getStatistics() {
-        return null;
+        NamedList<Object> stats = new NamedList<Object>();
+        stats.add("generation", getGeneration());
+        stats.add("compiledQueryCache", compiledQueryCache.getStatistics());
+        stats.add("cachedModules", moduleCache.size());
+        stats.add("serializersInUse", serializersInUse.get());
+        stats.add("serializerPoolSize", serializersPooled.get());
+        stats.add("resultMemory", resultMemoryBudget.getStatistics());
+        if (commitScheduler != null) {
+            stats.add("commits", commitScheduler.getStatistics());
+        }
+        stats.add("unchangedDocuments", unchangedDocuments.get());
+        if (xpathFieldEvaluator != null) {
+            stats.add("invalidFieldValues", xpathFieldEvaluator.getInvalidValueCount());
+        }
+        return stats;
     }
     
 }
@@ -1,32 +1,73 @@
 package lux.solr;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
 import javax.servlet.http.HttpServletRequest;
 
 import lux.QueryContext;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Serializer;
 
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.StrUtils;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrQueryRequest;
 
+/**
+ * Holds the state of a single query evaluation.  One of these is created for each request handled by
+ * an {@link XQueryComponent}, and is stored in the request's context, so that the component itself,
+ * which is shared by all requests, holds no per-request state.
+ */
 public class SolrQueryContext extends QueryContext {
 
     public static final String LUX_HTTP_SERVLET_REQUEST = "lux.httpServletRequest";
     public static final String LUX_HTTP_SERVLET_RESPONSE = "lux.httpServletResponse";
     public static final String LUX_COMMIT = "lux.commit";
+    public static final String LUX_QUERY_CONTEXT = "lux.queryContext";
 
     private final XQueryComponent queryComponent;
-    
+
     private final SolrQueryRequest req;
-    
+
     private final HttpServletRequest servletRequest;
 
     private ResponseBuilder responseBuilder;
-    
+
     private boolean commitPending;
 
+    private String queryPath;
+
+    private Serializer serializer;
+
+    private ResultBuffer resultBuffer;
+
+    private long resultByteSize;
+
+    private long maxResultSize;
+
+    private String[] shards;
+
+    private String[] slices;
+
+    private CancellationToken cancellationToken;
+
+    private boolean tinyBinaryResults;
+
+    private Set<String> storedFields;
+
+    private SolrDocWriter docWriter;
+
+    private final WeakHashMap<NodeInfo, SolrDocument> solrDocuments;
+
     public SolrQueryContext(XQueryComponent xQueryComponent, SolrQueryRequest req) {
         this.queryComponent = xQueryComponent;
         this.req = req;
         servletRequest = (HttpServletRequest) req.getContext().get(LUX_HTTP_SERVLET_REQUEST);
+        cancellationToken = new CancellationToken(0, -1);
+        solrDocuments = new WeakHashMap<NodeInfo, SolrDocument>();
     }
 
     public XQueryComponent getQueryComponent() {
@@ -36,7 +77,7 @@ public class SolrQueryContext extends QueryContext {
     public ResponseBuilder getResponseBuilder() {
         return responseBuilder;
     }
-    
+
     public HttpServletRequest getHttpServletRequest () {
         return servletRequest;
     }
@@ -48,7 +89,7 @@ public class SolrQueryContext extends QueryContext {
     public SolrQueryRequest getSolrQueryRequest() {
         return req;
     }
-    
+
     public boolean isCommitPending() {
         return commitPending;
     }
@@ -56,5 +97,167 @@ public class SolrQueryContext extends QueryContext {
     public void setCommitPending(boolean commitPending) {
         this.commitPending = commitPending;
     }
-    
+
+    /**
+     * @return the location of the main query module, or null if the query was passed as a parameter
+     */
+    public String getQueryPath() {
+        return queryPath;
+    }
+
+    public void setQueryPath(String queryPath) {
+        this.queryPath = queryPath;
+    }
+
+    /**
+     * @return the serializer used to serialize node results, checked out from the pool for the
+     * duration of the query evaluation
+     */
+    public Serializer getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(Serializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * @return the buffer that receives serialized node results, or null if results are to be serialized as Strings
+     */
+    public ResultBuffer getResultBuffer() {
+        return resultBuffer;
+    }
+
+    public void setResultBuffer(ResultBuffer resultBuffer) {
+        this.resultBuffer = resultBuffer;
+    }
+
+    /**
+     * @return the number of bytes of results accumulated so far
+     */
+    public long getResultByteSize() {
+        return resultByteSize;
+    }
+
+    public void setResultByteSize(long resultByteSize) {
+        this.resultByteSize = resultByteSize;
+    }
+
+    /**
+     * @return the maximum number of bytes of results that may be accumulated
+     */
+    public long getMaxResultSize() {
+        return maxResultSize;
+    }
+
+    public void setMaxResultSize(long maxResultSize) {
+        this.maxResultSize = maxResultSize;
+    }
+
+    /**
+     * @return the shards participating in a distributed request, or null if the request is not distributed
+     */
+    public String[] getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the slice (shard id) of each of the shards, in the same order
+     */
+    public String[] getSlices() {
+        return slices;
+    }
+
+    public void setShards(String[] shards, String[] slices) {
+        this.shards = shards;
+        this.slices = slices;
+    }
+
+    /**
+     * @return the token that signals when the evaluation should be abandoned
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * @return whether document and element results are to be returned as TinyBinary byte arrays
+     */
+    public boolean isTinyBinaryResults() {
+        return tinyBinaryResults;
+    }
+
+    public void setTinyBinaryResults(boolean tinyBinaryResults) {
+        this.tinyBinaryResults = tinyBinaryResults;
+    }
+
+    /**
+     * @return the names of the stored fields read by the query (apart from those Lux always reads), or
+     * null if they are not known, and all fields must be retrieved
+     */
+    public Set<String> getStoredFields() {
+        return storedFields;
+    }
+
+    public void setStoredFields(Set<String> storedFields) {
+        this.storedFields = storedFields;
+    }
+
+    /**
+     * @return the writer that performs the updates made by the query
+     */
+    public SolrDocWriter getDocWriter() {
+        return docWriter;
+    }
+
+    public void setDocWriter(SolrDocWriter docWriter) {
+        this.docWriter = docWriter;
+    }
+
+    /**
+     * @param document the root of a document retrieved by a distributed request
+     * @return the stored fields of the document, as retrieved by this request, or null if the document
+     * was not retrieved by a distributed request
+     */
+    public SolrDocument getSolrDocument(NodeInfo document) {
+        return solrDocuments.get(document);
+    }
+
+    /**
+     * Records the stored fields of a document retrieved by a distributed request.  These are kept here,
+     * rather than in the document, since documents may be cached and shared by concurrent requests, which
+     * may have retrieved different fields.
+     * @param document the root of the document
+     * @param solrDocument the document's stored fields
+     */
+    public void setSolrDocument(NodeInfo document, SolrDocument solrDocument) {
+        solrDocuments.put(document, solrDocument);
+    }
+
+    /**
+     * @param includeSelf whether to include the urls of replicas of the shard that this core belongs to
+     * @return the urls of all the replicas of all the shards participating in a distributed request
+     */
+    public List<String> getShardURLs (boolean includeSelf) {
+        ArrayList<String> urls = new ArrayList<String> ();
+        String shardId = queryComponent.getCore().getCoreDescriptor().getCloudDescriptor().getShardId();
+        for (int i = 0; i < shards.length; i++) {
+            if (!includeSelf) {
+                if (shardId.equals(slices[i])) {
+                    // exclude this shard
+                    continue;
+                }
+            }
+            List<String> replicas = StrUtils.splitSmart(shards[i], "|", true);
+            for (String replica : replicas) {
+                urls .add("http://" + replica);
+            }
+        }
+        return urls;
+    }
+
 }
@@ -1,11 +1,17 @@
 package lux.solr;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 
 import lux.CachingDocReader;
+import lux.Evaluator;
 import lux.LuxURIResolver;
 import lux.exception.LuxException;
 import lux.exception.NotFoundException;
@@ -14,13 +20,19 @@ import lux.index.IndexConfiguration;
 import lux.search.LuxSearcher;
 import net.sf.saxon.s9api.XdmNode;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.search.Sort;
+import org.apache.solr.cloud.ZkController;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.cloud.DocCollection;
+import org.apache.solr.common.cloud.Slice;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SortSpec;
 
 /**
@@ -31,6 +43,9 @@ public class SolrURIResolver extends LuxURIResolver {
     private final XQueryComponent xqueryComponent;
     private final String xmlFieldName;
     private final String idFieldName;
+
+    // keep the boolean query well under the default maxBooleanClauses
+    private static final int MAX_URIS_PER_REQUEST = 256;
     
     SolrURIResolver(XQueryComponent xqueryComponent, URIResolver systemURIResolver) {
         super (systemURIResolver, null,  
@@ -44,65 +59,183 @@ public class SolrURIResolver extends LuxURIResolver {
     @Override
     public XdmNode getDocument(String uri) throws TransformerException {
 
-        String[] shards = xqueryComponent.getCurrentShards();
-        if (shards != null) {
+        SolrQueryContext context = getQueryContext();
+        if (context != null) {
+            context.getCancellationToken().check();
+        }
+        if (context != null && context.getShards() != null) {
             return getDocumentDistrib (uri);
-        } else {
+        }
+        if (context == null) {
             return super.getDocument (uri);
         }
+        // documents in the local index are cached by uri for the lifetime of the searcher
+        SolrIndexSearcher searcher = context.getSolrQueryRequest().getSearcher();
+        XdmNode node = DocumentCache.get(searcher, uri);
+        if (node == null) {
+            node = super.getDocument (uri);
+            DocumentCache.put(searcher, uri, node);
+        }
+        return node;
+    }
+
+    /**
+     * Retrieves a number of documents at once.  In a distributed setting, each document is retrieved 
+     * from the shard that owns it, and all the documents from a given shard are retrieved using a 
+     * single request.
+     * @param uris the uris of the documents to retrieve
+     * @return the documents, in the same order as their uris
+     * @throws TransformerException if any of the documents is not found
+     */
+    public List<XdmNode> getDocuments(List<String> uris) throws TransformerException {
+        SolrQueryContext context = getQueryContext();
+        if (context != null && context.getShards() != null) {
+            context.getCancellationToken().check();
+            return getDocumentsDistrib (uris);
+        }
+        ArrayList<XdmNode> docs = new ArrayList<XdmNode>(uris.size());
+        for (String uri : uris) {
+            docs.add(getDocument(uri));
+        }
+        return docs;
     }
 
     private XdmNode getDocumentDistrib(String uri) throws NotFoundException {
+        return getDocumentsDistrib(Collections.singletonList(uri)).get(0);
+    }
+
+    private List<XdmNode> getDocumentsDistrib(List<String> uris) throws NotFoundException {
+        // group the uris by the shard that owns them
+        LinkedHashMap<String, List<String>> shardUris = new LinkedHashMap<String, List<String>>();
+        for (String uri : uris) {
+            String shard = routeToShard(uri);
+            List<String> group = shardUris.get(shard);
+            if (group == null) {
+                group = new ArrayList<String>();
+                shardUris.put(shard, group);
+            }
+            group.add(uri);
+        }
+        HashMap<String, SolrDocument> found = new HashMap<String, SolrDocument>();
+        for (Map.Entry<String, List<String>> entry : shardUris.entrySet()) {
+            List<String> group = entry.getValue();
+            for (int i = 0; i < group.size(); i += MAX_URIS_PER_REQUEST) {
+                List<String> batch = group.subList(i, Math.min(group.size(), i + MAX_URIS_PER_REQUEST));
+                SolrDocumentList docs = retrieveDocuments (entry.getKey(), batch);
+                if (docs == null) {
+                    continue;
+                }
+                for (SolrDocument doc : docs) {
+                    String uri = (String) doc.getFirstValue(uriFieldName);
+                    if (found.put(uri, doc) != null) {
+                        throw new NotFoundException ("found multiple documents with uri='" + uri + "'");
+                    }
+                }
+            }
+        }
+        SolrIndexSearcher searcher = getQueryContext().getSolrQueryRequest().getSearcher();
+        ArrayList<XdmNode> nodes = new ArrayList<XdmNode>(uris.size());
+        for (String uri : uris) {
+            SolrDocument doc = found.get(uri);
+            if (doc == null) {
+                throw new NotFoundException ("document '" + uri + "' not found");
+            }
+            nodes.add(createDocument(searcher, uri, doc));
+        }
+        return nodes;
+    }
+
+    private SolrDocumentList retrieveDocuments (String shards, List<String> uris) {
+        StringBuilder query = new StringBuilder (uriFieldName).append(":(");
+        for (int i = 0; i < uris.size(); i++) {
+            if (i > 0) {
+                query.append(" OR ");
+            }
+            query.append('"').append(uris.get(i).replaceAll("([\\\\\"])", "\\\\$1")).append('"');
+        }
+        query.append(')');
         ModifiableSolrParams params = new ModifiableSolrParams();
-        params.add((CommonParams.Q), uriFieldName + ":\"" + uri.replaceAll("([\\\\\\\"])", "\\$1") + '"');
+        params.add(CommonParams.Q, query.toString());
         params.add(CommonParams.FL, uriFieldName, xmlFieldName, idFieldName);
         params.add(CommonParams.WT, "javabin");
         params.add(CommonParams.VERSION, "2");
         params.add("distrib", "true");
-        String[] shards = xqueryComponent.getCurrentShards();
-        StringBuilder shardBuffer = new StringBuilder(shards[0]);
-        for (int i = 0; i < shards.length; i++) {
-            shardBuffer.append(',').append(shards[i]);
+        params.add("shards", shards);
+        long timeAllowed = getQueryContext().getCancellationToken().getTimeRemaining();
+        if (timeAllowed > 0) {
+            params.add(CommonParams.TIME_ALLOWED, Long.toString(timeAllowed));
         }
-        params.add("shards", shardBuffer.toString());
-        CloudQueryRequest req = new CloudQueryRequest(xqueryComponent.getCore(), params, new SortSpec(Sort.RELEVANCE, 1));
+        // ask for one more than we expect, so that duplicates can be detected
+        int rows = uris.size() + 1;
+        params.add(CommonParams.ROWS, Integer.toString(rows));
+        CloudQueryRequest req = new CloudQueryRequest(xqueryComponent.getCore(), params, new SortSpec(Sort.RELEVANCE, rows));
         // don't need to query for docids?
         req.setNextStage(ResponseBuilder.STAGE_GET_FIELDS);
         SolrQueryResponse response = new SolrQueryResponse();
-        // TODO: we could probably figure out which shard has the document and only query that one
-        // instead of broadcasting this request to all of them
         xqueryComponent.getSearchHandler().handleRequest(req, response);
         if (response.getException() != null) {
-            throw new LuxException ("An error occurred while retrieving " + uri, response.getException());
-        }
-        SolrDocumentList docs = (SolrDocumentList) response.getValues().get("response");
-        if (docs.isEmpty()) {
-            throw new NotFoundException ("document '" + uri + "' not found");
+            throw new LuxException ("An error occurred while retrieving " + uris, response.getException());
         }
-        if (docs.size() > 1) {
-            throw new NotFoundException ("found " + docs.size() + " documents with uri='" + uri + "'");
-        }
-        SolrDocument doc = docs.get(0);
-        Long docID = (Long) doc.get(idFieldName);
-        Object xml = doc.get(xmlFieldName);
-        if (xml instanceof ArrayList<?>) {
-            // why does this come back as an ArrayList?
-            xml = ((ArrayList<?>)xml).get(0);
-        }
-        String xmlString = null;
-        byte[] xmlBytes = null;
-        if (xml instanceof String) {
-            xmlString = (String) xml;
-        } else {
-            // Must be a tinybin if it's not a String
-            xmlBytes = (byte[]) xml;
+        return (SolrDocumentList) response.getValues().get("response");
+    }
+
+    /*
+     * @return the shard (or replicas of a shard, separated by "|") that owns the document with the given uri,
+     * according to the collection's document router.  If the owner can't be determined, all the shards
+     * participating in the request are returned, separated by ",".
+     */
+    private String routeToShard (String uri) {
+        SolrQueryContext context = getQueryContext();
+        String[] shards = context.getShards();
+        String[] slices = context.getSlices();
+        CoreDescriptor coreDescriptor = xqueryComponent.getCore().getCoreDescriptor();
+        ZkController zkController = coreDescriptor.getCoreContainer().getZkController();
+        if (slices != null && zkController != null) {
+            String collectionName = coreDescriptor.getCloudDescriptor().getCollectionName();
+            DocCollection collection = zkController.getClusterState().getCollection(collectionName);
+            if (collection != null) {
+                // lux_uri is the unique key, so it determines where the document was sent
+                Slice slice = collection.getRouter().getTargetSlice(uri, null, null, collection);
+                for (int i = 0; i < slices.length; i++) {
+                    if (slice != null && slice.getName().equals(slices[i])) {
+                        return shards[i];
+                    }
+                }
+            }
         }
-        XdmNode node = getDocReader().createXdmNode(docID, uri, xmlString, xmlBytes);
+        return StringUtils.join(shards, ',');
+    }
+
+    private XdmNode createDocument (SolrIndexSearcher searcher, String uri, SolrDocument doc) {
+        Long docID = (Long) doc.getFirstValue(idFieldName);
+        Object xml = doc.getFirstValue(xmlFieldName);
         doc.removeFields(xmlFieldName);
-        node.getUnderlyingNode().getDocumentRoot().setUserData(SolrDocument.class.getName(), doc);
+        XdmNode node = DocumentCache.get(searcher, docID);
+        if (node == null) {
+            String xmlString = null;
+            byte[] xmlBytes = null;
+            if (xml instanceof String) {
+                xmlString = (String) xml;
+            } else {
+                // Must be a tinybin if it's not a String
+                xmlBytes = (byte[]) xml;
+            }
+            node = getDocReader().createXdmNode(docID, uri, xmlString, xmlBytes);
+            DocumentCache.put(searcher, docID, node);
+        }
+        // cached nodes are shared by all requests, so the fields go in this request's context
+        getQueryContext().setSolrDocument(node.getUnderlyingNode().getDocumentRoot(), doc);
         return node;
     }
     
+    private SolrQueryContext getQueryContext () {
+        Evaluator eval = xqueryComponent.getEvaluator();
+        if (eval == null || ! (eval.getQueryContext() instanceof SolrQueryContext)) {
+            return null;
+        }
+        return (SolrQueryContext) eval.getQueryContext();
+    }
+    
     @Override
     public LuxSearcher getSearcher() {
         return xqueryComponent.getEvaluator().getSearcher();
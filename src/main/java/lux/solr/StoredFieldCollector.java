@@ -0,0 +1,101 @@
+package lux.solr;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+import lux.Evaluator;
+import net.sf.saxon.expr.Binding;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.FunctionCall;
+import net.sf.saxon.expr.StringLiteral;
+import net.sf.saxon.expr.UserFunctionCall;
+import net.sf.saxon.expr.VariableReference;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.expr.instruct.UserFunction;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.query.QueryModule;
+import net.sf.saxon.query.XQueryFunction;
+import net.sf.saxon.s9api.XQueryExecutable;
+
+/**
+ * Determines which stored fields a compiled query reads from the documents it retrieves, so that
+ * distributed searches need only return those fields.  Fields are read using lux:key() and 
+ * lux:field-values(); if every call to one of these names its field with a string literal, the
+ * set of fields is known.  The functions and global variables that the query refers to are followed
+ * into the library modules that declare them, so calls in imported modules are found too.
+ */
+public class StoredFieldCollector {
+
+    private final Set<String> fields;
+
+    // the global variables and functions visited so far
+    private final Set<Object> visited;
+
+    private boolean unknown;
+
+    private StoredFieldCollector () {
+        fields = new HashSet<String>();
+        visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    }
+
+    /**
+     * @param executable a compiled query
+     * @return the names of the fields read by the query, or null if they cannot be determined
+     */
+    public static Set<String> collect (XQueryExecutable executable) {
+        StoredFieldCollector collector = new StoredFieldCollector();
+        QueryModule module = executable.getUnderlyingCompiledQuery().getStaticContext();
+        collector.visit (executable.getUnderlyingCompiledQuery().getExpression());
+        Iterator<XQueryFunction> functions = module.getGlobalFunctionLibrary().getFunctionDefinitions();
+        while (functions.hasNext() && ! collector.unknown) {
+            collector.visit (functions.next().getBody());
+        }
+        Iterator<GlobalVariable> variables = module.getModuleVariables();
+        while (variables.hasNext() && ! collector.unknown) {
+            collector.visit (variables.next().getSelectExpression());
+        }
+        return collector.unknown ? null : collector.fields;
+    }
+
+    private void visit (Expression expr) {
+        if (expr == null || unknown) {
+            return;
+        }
+        if (expr instanceof FunctionCall) {
+            StructuredQName name = ((FunctionCall) expr).getFunctionName();
+            if (name != null && Evaluator.LUX_NAMESPACE.equals(name.getURI()) &&
+                    (name.getLocalPart().equals("key") || name.getLocalPart().equals("field-values"))) {
+                Expression[] args = ((FunctionCall) expr).getArguments();
+                if (args.length == 0 || ! (args[0] instanceof StringLiteral)) {
+                    unknown = true;
+                    return;
+                }
+                fields.add(((StringLiteral) args[0]).getStringValue());
+            }
+        }
+        if (expr instanceof VariableReference) {
+            Binding binding = ((VariableReference) expr).getBinding();
+            if (binding instanceof GlobalVariable && visited.add(binding)) {
+                // the variable may be declared in a library module
+                visit (((GlobalVariable) binding).getSelectExpression());
+            }
+        } else if (expr instanceof UserFunctionCall) {
+            UserFunction function = ((UserFunctionCall) expr).getFunction();
+            if (function != null && visited.add(function)) {
+                visit (function.getBody());
+            }
+        }
+        Iterator<Expression> subExpressions = expr.iterateSubExpressions();
+        while (subExpressions.hasNext()) {
+            visit (subExpressions.next());
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,90 @@
+package lux.solr;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import lux.xml.tinybin.TinyBinary;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * A helper for SolrJ clients that request XQuery results with lux.xmlFormat=tinybin (see 
+ * {@link XQueryComponent#LUX_XML_FORMAT}).  Document and element results are returned as binary 
+ * encodings of Saxon TinyTrees; this class rebuilds them as Saxon nodes without any XML parsing.
+ * <pre>
+ * SolrQuery q = new SolrQuery(query);
+ * q.setRequestHandler("/xquery");
+ * q.set("lux.xmlFormat", "tinybin");
+ * NamedList&lt;Object&gt; results = (NamedList&lt;Object&gt;) solr.query(q).getResponse().get("xpath-results");
+ * List&lt;Object&gt; items = new TinyBinaryResults(processor).decode(results);
+ * </pre>
+ */
+public class TinyBinaryResults {
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private final Processor processor;
+
+    /**
+     * @param processor the Saxon processor that will own the decoded documents
+     */
+    public TinyBinaryResults (Processor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * @param xpathResults the xpath-results from an XQuery response
+     * @return a list of the results, in which each binary encoded document or element is replaced by
+     * an {@link XdmNode}; other results are returned as they were received.
+     */
+    public List<Object> decode (NamedList<?> xpathResults) {
+        ArrayList<Object> items = new ArrayList<Object>(xpathResults.size());
+        for (int i = 0; i < xpathResults.size(); i++) {
+            Object value = xpathResults.getVal(i);
+            if (value instanceof byte[]) {
+                XdmNode doc = decode ((byte[]) value);
+                if ("element".equals(xpathResults.getName(i))) {
+                    items.add(getDocumentElement(doc));
+                } else {
+                    items.add(doc);
+                }
+            } else {
+                items.add(value);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @param bytes a binary encoded TinyTree
+     * @return the document node of the tree
+     */
+    public XdmNode decode (byte[] bytes) {
+        Configuration config = processor.getUnderlyingConfiguration();
+        return new XdmNode(new TinyBinary(bytes, UTF8).getTinyDocument(config));
+    }
+
+    private static XdmNode getDocumentElement (XdmNode doc) {
+        XdmSequenceIterator children = doc.axisIterator(Axis.CHILD);
+        while (children.hasNext()) {
+            XdmItem child = children.next();
+            if (((XdmNode) child).getNodeKind() == XdmNodeKind.ELEMENT) {
+                return (XdmNode) child;
+            }
+        }
+        return doc;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -1,11 +1,13 @@
 package lux.solr;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -13,6 +15,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -20,7 +24,6 @@ import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
 
 import lux.Compiler;
-import lux.DocWriter;
 import lux.Evaluator;
 import lux.QueryStats;
 import lux.TransformErrorListener;
@@ -31,15 +34,21 @@ import lux.search.LuxSearcher;
 import lux.search.SolrSearchService;
 import lux.solr.LuxDispatchFilter.Request;
 import lux.xml.QName;
+import lux.xml.tinybin.TinyBinary;
 import net.sf.saxon.Configuration;
 import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.lib.ModuleURIResolver;
 import net.sf.saxon.om.FingerprintedQName;
 import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.SequenceTool;
 import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.om.TreeModel;
 import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
@@ -50,11 +59,12 @@ import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.linked.LinkedTreeBuilder;
 import net.sf.saxon.tree.tiny.TinyElementImpl;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
 import net.sf.saxon.type.AnyType;
 import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Type;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.DecimalValue;
-import net.sf.saxon.value.GDateValue;
 import net.sf.saxon.value.GDayValue;
 import net.sf.saxon.value.GMonthDayValue;
 import net.sf.saxon.value.GMonthValue;
@@ -69,25 +79,24 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.params.CommonParams;
-import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.ContentStreamBase;
 import org.apache.solr.common.util.NamedList;
-import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.QueryComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.SearchHandler;
 import org.apache.solr.request.SolrQueryRequest;
-import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.response.BinaryResponseWriter;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.SolrIndexSearcher;
-import org.apache.solr.update.CommitUpdateCommand;
-import org.apache.solr.update.processor.UpdateRequestProcessorChain;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 import org.apache.solr.util.plugin.SolrCoreAware;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -101,44 +110,185 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
 
     public static final String LUX_XQUERY = "lux.xquery";
     public static final String LUX_PATH_INFO = "lux.pathInfo";
+    public static final String LUX_STREAMING = "lux.streaming";
+    public static final String LUX_MAX_RESULT_SIZE = "lux.maxResultSize";
+    /** 
+     * request parameter: when true, a query that commits (using lux:commit) waits for its commit to be
+     * performed, so that its updates are visible to subsequent requests, before it returns.
+     */
+    public static final String LUX_WAIT_COMMIT = "lux.waitCommit";
+    /** 
+     * request parameter controlling the encoding of document and element results sent to binary (javabin)
+     * clients: with the value "tinybin", they are sent as {@link TinyBinary} byte arrays, which may be
+     * decoded using {@link TinyBinaryResults}, rather than as serialized XML.  It is ignored when the
+     * response is written by any other writer.
+     */
+    public static final String LUX_XML_FORMAT = "lux.xmlFormat";
+    public static final String TINYBIN_FORMAT = "tinybin";
+    /** the request context key under which the buffer holding serialized results is stored */
+    public static final String RESULT_BUFFER = "lux.resultBuffer";
     private static final QName LUX_HTTP = new QName(Evaluator.LUX_NAMESPACE, "http");
-    // TODO: expose via configuration
-    private static final int MAX_RESULT_SIZE = (int) (Runtime.getRuntime().maxMemory() / 32);
+    public static final long DEFAULT_MAX_RESULT_SIZE = Runtime.getRuntime().maxMemory() / 32;
+    public static final long DEFAULT_CLOUD_BATCH_BUDGET = 4 * 1024 * 1024;
+    public static final int DEFAULT_PREFETCH_THREADS = 4;
+    public static final int DEFAULT_CLOUD_WRITE_BATCH_SIZE = 100;
+    public static final long DEFAULT_CLOUD_WRITE_BATCH_BUDGET = 4 * 1024 * 1024;
 
     protected Set<String> fields = new HashSet<String>();
 
     protected SolrIndexConfig solrIndexConfig;
     protected SearchHandler searchHandler;
 
-    protected String queryPath;
-
     private SolrURIResolver uriResolver; 
-    private static ThreadLocal<Evaluator> evalHolder;
-    
-    private Serializer serializer;
 
+    private CachingModuleURIResolver moduleURIResolver;
+    
+    // tracks the evaluator in use by the current thread, for the benefit of the URI resolver, which is shared
+    private static final ThreadLocal<Evaluator> evalHolder = new ThreadLocal<Evaluator>();
+    
     private Logger logger;
     
     private SolrCore core;
 
-    private int resultByteSize;
+    private int compiledQueryCacheSize = -1;
+    
+    private Long moduleCheckInterval;
+    
+    private long maxResultSize = DEFAULT_MAX_RESULT_SIZE;
+    
+    private Long globalResultBudget;
+    
+    private long cloudBatchBudget = DEFAULT_CLOUD_BATCH_BUDGET;
+    
+    private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+    
+    private ExecutorService prefetchExecutor;
+    
+    private Long commitWindow;
     
-    // In theory this is per-request state, but changes infrequently, so we just grab it as it flies by?
-    private String[] shards;
-    private String[] slices;
+    private int cloudWriteBatchSize = DEFAULT_CLOUD_WRITE_BATCH_SIZE;
+    
+    private long cloudWriteBatchBudget = DEFAULT_CLOUD_WRITE_BATCH_BUDGET;
     
     public XQueryComponent() {
         logger = LoggerFactory.getLogger(XQueryComponent.class);
-        evalHolder = new ThreadLocal<Evaluator>();
+    }
+
+    /**
+     * Reads the component's configuration from solrconfig.xml.  Recognized arguments:
+     * <dl>
+     * <dt>compiled-query-cache-size</dt><dd>the number of compiled queries to retain in the core's
+     * query cache; 0 disables caching.</dd>
+     * <dt>module-check-interval</dt><dd>the minimum time, in milliseconds, between checks for changes
+     * to cached query module files; if negative, module files are never re-read.</dd>
+     * <dt>max-result-size</dt><dd>the maximum size, in bytes, of the results of a single request.
+     * A request may lower its own limit using the lux.maxResultSize parameter, which may also be
+     * set for each request handler, but may not raise it above this size.  Results are truncated
+     * at this size.  The default is 1/32 of the maximum heap size.</dd>
+     * <dt>global-result-budget</dt><dd>the maximum size, in bytes, of the results of all the 
+     * requests in flight on the core; by default 1/4 of the maximum heap size.</dd>
+     * <dt>cloud-batch-budget</dt><dd>the approximate maximum size, in bytes, of the documents retrieved
+     * in a single batch by a distributed search; batches grow until they reach this size.  The default
+     * is 4MB.</dd>
+     * <dt>prefetch-threads</dt><dd>the number of threads used to fetch the next batch of results of
+     * distributed searches in the background; 0 disables prefetching.  The default is 4.</dd>
+     * <dt>cloud-write-batch-size</dt><dd>the number of updates (lux:insert and lux:delete) a distributed
+     * request buffers before sending them to the shards; buffered updates are also sent when their size
+     * reaches the cloud-write-batch-budget, when the query commits, and when it completes.  The default is 100.</dd>
+     * <dt>cloud-write-batch-budget</dt><dd>the approximate maximum size, in bytes, of the documents in a
+     * single batch of distributed updates.  The default is 4MB.</dd>
+     * <dt>commit-window</dt><dd>the time, in milliseconds, during which commits requested by queries
+     * (using lux:commit) are gathered together and performed as a single soft commit.  Requests return
+     * without waiting for the commit unless they set lux.waitCommit=true.  The default, 0, commits each
+     * request's updates immediately.</dd>
+     * </dl>
+     * Results that are streamed (see {@link #LUX_STREAMING}) are not held in memory, and are not limited.
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        if (args != null) {
+            Object cacheSize = args.get("compiled-query-cache-size");
+            if (cacheSize != null) {
+                compiledQueryCacheSize = Integer.parseInt(cacheSize.toString());
+            }
+            Object checkInterval = args.get("module-check-interval");
+            if (checkInterval != null) {
+                moduleCheckInterval = Long.valueOf(checkInterval.toString());
+            }
+            Object maxSize = args.get("max-result-size");
+            if (maxSize != null) {
+                maxResultSize = Long.parseLong(maxSize.toString());
+            }
+            Object budget = args.get("global-result-budget");
+            if (budget != null) {
+                globalResultBudget = Long.valueOf(budget.toString());
+            }
+            Object batchBudget = args.get("cloud-batch-budget");
+            if (batchBudget != null) {
+                cloudBatchBudget = Long.parseLong(batchBudget.toString());
+            }
+            Object threads = args.get("prefetch-threads");
+            if (threads != null) {
+                prefetchThreads = Integer.parseInt(threads.toString());
+            }
+            Object writeBatchSize = args.get("cloud-write-batch-size");
+            if (writeBatchSize != null) {
+                cloudWriteBatchSize = Integer.parseInt(writeBatchSize.toString());
+            }
+            Object writeBatchBudget = args.get("cloud-write-batch-budget");
+            if (writeBatchBudget != null) {
+                cloudWriteBatchBudget = Long.parseLong(writeBatchBudget.toString());
+            }
+            Object window = args.get("commit-window");
+            if (window != null) {
+                commitWindow = Long.valueOf(window.toString());
+            }
+        }
     }
 
     @Override
     public void inform(SolrCore solrCore) {
         solrIndexConfig = SolrIndexConfig.registerIndexConfiguration(solrCore);
+        if (compiledQueryCacheSize >= 0) {
+            solrIndexConfig.getCompiledQueryCache().setMaxSize(compiledQueryCacheSize);
+        }
+        if (moduleCheckInterval != null) {
+            solrIndexConfig.getModuleCache().setCheckInterval(moduleCheckInterval);
+        }
+        if (globalResultBudget != null) {
+            solrIndexConfig.getResultMemoryBudget().setLimit(globalResultBudget);
+        }
+        if (commitWindow != null) {
+            solrIndexConfig.getCommitScheduler().setWindow(commitWindow);
+        }
         this.core = solrCore;
+        if (prefetchThreads > 0) {
+            // threads are only started when a distributed search needs one
+            prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, new DefaultSolrThreadFactory("luxPrefetch"));
+            solrCore.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore c) {
+                    prefetchExecutor.shutdownNow();
+                }
+                @Override
+                public void postClose(SolrCore c) {
+                }
+            });
+        }
         Configuration saxonConfig = solrIndexConfig.getCompiler().getProcessor().getUnderlyingConfiguration();
         uriResolver = new SolrURIResolver(this, saxonConfig.getSystemURIResolver());
         saxonConfig.setURIResolver(uriResolver);
+        solrIndexConfig.getCompiler().getProcessor().registerExtensionFunction(new DocsFunction(uriResolver));
+        XQueryCompiler xqueryCompiler = solrIndexConfig.getCompiler().getXQueryCompiler();
+        ModuleURIResolver moduleResolver = xqueryCompiler.getModuleURIResolver();
+        if (! (moduleResolver instanceof CachingModuleURIResolver)) {
+            if (moduleResolver == null) {
+                moduleResolver = saxonConfig.getStandardModuleURIResolver();
+            }
+            xqueryCompiler.setModuleURIResolver(new CachingModuleURIResolver(solrIndexConfig.getModuleCache(), moduleResolver));
+        }
+        moduleURIResolver = (CachingModuleURIResolver) xqueryCompiler.getModuleURIResolver();
     }
     
     private void findSearchHandler () {
@@ -174,9 +324,30 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         if (rb.getQueryString() == null) {
             rb.setQueryString(params.get(CommonParams.Q));
         }
+        SolrQueryContext context = getQueryContext(req);
+        if (context.getQueryPath() == null) {
+            // allow subclasses to override...
+            context.setQueryPath(params.get(LUX_XQUERY));
+        }
+    }
+    
+    /**
+     * @param req the request
+     * @return the evaluation context for the request, which is created and stored in the request context
+     * the first time it is requested.
+     */
+    protected SolrQueryContext getQueryContext (SolrQueryRequest req) {
+        SolrQueryContext context = (SolrQueryContext) req.getContext().get(SolrQueryContext.LUX_QUERY_CONTEXT);
+        if (context == null) {
+            context = new SolrQueryContext(this, req);
+            req.getContext().put(SolrQueryContext.LUX_QUERY_CONTEXT, context);
+        }
+        return context;
+    }
+    
+    private Serializer checkoutSerializer (SolrParams params) {
         String contentType = params.get("lux.contentType");
-        // TODO: make this a local variable in or near #addResult, not an instance variable: it's not threadsafe
-        serializer = solrIndexConfig.checkoutSerializer();
+        Serializer serializer = solrIndexConfig.checkoutSerializer();
         if (contentType != null) {
             if (contentType.equals("text/html")) {
                 serializer.setOutputProperty(Serializer.Property.METHOD, "html");
@@ -186,31 +357,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         } else {
             serializer.setOutputProperty(Serializer.Property.METHOD, getDefaultSerialization());
         }
-        if (queryPath == null) {
-            // allow subclasses to override...
-            queryPath = rb.req.getParams().get(LUX_XQUERY);
-        }
-        resultByteSize = 0;
-    }
-    
-    
-    public ArrayList<String> getShardURLs (boolean includeSelf) {
-        // String[] urls = new String[shards.length + (includeSelf ? 0 : -1)];
-        ArrayList<String> urls = new ArrayList<String> ();
-        String shardId = core.getCoreDescriptor().getCloudDescriptor().getShardId();
-        for (int i = 0; i < shards.length; i++) {
-            if (!includeSelf) {
-                if (shardId.equals(slices[i])) {
-                    // exclude this shard
-                    continue;
-                }
-            }
-            List<String> replicas = StrUtils.splitSmart(shards[i], "|", true);
-            for (String replica : replicas) {
-                urls .add("http://" + replica);
-            }
-        }
-        return urls;
+        return serializer;
     }
     
     public String getDefaultSerialization() {
@@ -230,11 +377,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
         int start = params.getInt(CommonParams.START, 1);
         int len = params.getInt(CommonParams.ROWS, -1);
-        try {
-            evaluateQuery(rb, start, len);
-        } finally {
-            solrIndexConfig.returnSerializer(serializer);
-        }
+        evaluateQuery(rb, start, len);
     }
     
     /**
@@ -270,6 +413,47 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
     }
 
     protected void evaluateQuery(ResponseBuilder rb, int start, int len) {
+        SolrQueryContext context = getQueryContext(rb.req);
+        context.setSerializer(checkoutSerializer(rb.req.getParams()));
+        // a request may lower its limit, but not raise it beyond the configured maximum
+        context.setMaxResultSize(Math.min(rb.req.getParams().getLong(LUX_MAX_RESULT_SIZE, maxResultSize), maxResultSize));
+        // only javabin (SolrJ) clients can decode tinybin results; text writers get serialized xml
+        context.setTinyBinaryResults(TINYBIN_FORMAT.equals(rb.req.getParams().get(LUX_XML_FORMAT)) 
+                && writesBinaryResponse(rb.req));
+        try {
+            evaluateQuery (rb, context, start, len);
+        } finally {
+            solrIndexConfig.returnSerializer(context.getSerializer());
+            context.setSerializer(null);
+            evalHolder.remove();
+            releaseResultBytes (context);
+        }
+    }
+    
+    /**
+     * Arranges for the space reserved for the results to be returned to the core's result memory budget
+     * once the response has been written, or immediately if there is no request in progress to attach to.
+     */
+    private void releaseResultBytes (SolrQueryContext context) {
+        final long reserved = context.getResultByteSize();
+        if (reserved == 0) {
+            return;
+        }
+        final ResultMemoryBudget budget = solrIndexConfig.getResultMemoryBudget();
+        SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo != null) {
+            requestInfo.addCloseHook(new Closeable() {
+                @Override
+                public void close() {
+                    budget.release(reserved);
+                }
+            });
+        } else {
+            budget.release(reserved);
+        }
+    }
+    
+    private void evaluateQuery(ResponseBuilder rb, SolrQueryContext context, int start, int len) {
         String query = rb.getQueryString();
         SolrQueryRequest req = rb.req;
         SolrQueryResponse rsp = rb.rsp;
@@ -279,37 +463,69 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
         SolrParams params = req.getParams();
         long timeAllowed = (long) params.getInt(CommonParams.TIME_ALLOWED, -1);
+        CancellationToken cancellationToken = new CancellationToken(req.getStartTime(), timeAllowed);
+        context.setCancellationToken(cancellationToken);
         XQueryExecutable expr;
         LuxSearcher searcher = new LuxSearcher (rb.req.getSearcher());
-        DocWriter docWriter = new SolrDocWriter(this, rb.req.getCore());
         Compiler compiler = solrIndexConfig.getCompiler();
-        SolrQueryContext context = new SolrQueryContext(this, req);
         if (rb.shards != null && rb.req.getParams().getBool("distrib", true)) {
             // This is a distributed request; pass in the ResponseBuilder so it will be
             // available to a subquery.
             context.setResponseBuilder(rb);
             // also capture the current set of shards
-            shards = rb.shards;
-            slices = rb.slices;
+            context.setShards(rb.shards, rb.slices);
         }
+        SolrDocWriter docWriter = new SolrDocWriter(context, rb.req.getCore());
+        context.setDocWriter(docWriter);
         SolrSearchService searchService = new SolrSearchService(context, new LuxSearchQueryParser());
         Evaluator eval = new Evaluator(compiler, searcher, docWriter, searchService);
         // track which evaluator we are using in a threadlocal container
         evalHolder.set (eval);
         TransformErrorListener errorListener = eval.getErrorListener();
-        try {
-            URI baseURI = queryPath == null ? null : java.net.URI.create(queryPath);
-            expr = compiler.compile(query, errorListener, baseURI, null);
-        } catch (LuxException ex) {
-            // ex.printStackTrace();
-            String err = formatError(query, errorListener);
-            if (StringUtils.isEmpty(err)) {
-                err = ex.getMessage();
+        URI baseURI = context.getQueryPath() == null ? null : java.net.URI.create(context.getQueryPath());
+        CompiledQueryCache queryCache = solrIndexConfig.getCompiledQueryCache();
+        int generation = solrIndexConfig.getGeneration();
+        CompiledQueryCache.CompiledQuery compiledQuery = queryCache.get(query, baseURI, generation);
+        if (compiledQuery == null) {
+            Map<String,Long> imports;
+            moduleURIResolver.startRecording();
+            try {
+                expr = compiler.compile(query, errorListener, baseURI, null);
+            } catch (LuxException ex) {
+                // ex.printStackTrace();
+                String err = formatError(query, errorListener);
+                if (StringUtils.isEmpty(err)) {
+                    err = ex.getMessage();
+                }
+                rsp.add("xpath-error", err);
+                // don't close: this forces a commit()
+                // evaluator.close();
+                return;
+            } finally {
+                imports = moduleURIResolver.stopRecording();
             }
-            rsp.add("xpath-error", err);
-            // don't close: this forces a commit()
-            // evaluator.close();
-            return;
+            compiledQuery = new CompiledQueryCache.CompiledQuery(expr, imports);
+            queryCache.put(query, baseURI, generation, compiledQuery);
+        } else {
+            expr = compiledQuery.getExecutable();
+        }
+        if (context.getShards() != null) {
+            if (params.getBool(AggregatePushdown.LUX_PUSHDOWN, false) && context.getQueryPath() == null) {
+                AggregatePushdown pushdown = AggregatePushdown.analyze(expr);
+                if (pushdown != null) {
+                    NamedList<Object> xpathResults = new NamedList<Object>();
+                    String err = pushdown.evaluate(req, context.getShards(), query, cancellationToken.getTimeRemaining(), xpathResults);
+                    if (err != null) {
+                        rsp.add("xpath-error", err);
+                    } else {
+                        rsp.add("xpath-results", xpathResults);
+                    }
+                    addDocList (rb, eval);
+                    return;
+                }
+            }
+            // distributed searches need only retrieve the stored fields that the query reads
+            context.setStoredFields(compiledQuery.getStoredFields());
         }
         // SolrIndexSearcher.QueryResult result = new
         // SolrIndexSearcher.QueryResult();
@@ -318,34 +534,80 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         int count = 0;
         bindRequestVariables(rb, req, expr, compiler, eval, context);
         Iterator<XdmItem> queryResults = eval.iterator(expr, context);
-        String err = null;
-        while (queryResults.hasNext()) {
-            XdmItem xpathResult = queryResults.next();
-            if (++count < start) {
-                continue;
+        XdmItem xpathResult = null;
+        boolean partial = false;
+        try {
+            while (queryResults.hasNext()) {
+                xpathResult = queryResults.next();
+                if (++count >= start) {
+                    break;
+                }
+                xpathResult = null;
             }
-            if (count == 1 && !xpathResult.isAtomicValue()) {
-                net.sf.saxon.s9api.QName name = ((XdmNode)xpathResult).getNodeName();
-                if (name != null && name.getNamespaceURI().equals(EXPATH_HTTP_NS) &&
-                    name.getLocalName().equals("response")) {
-                    err = handleEXPathResponse(req, rsp, xpathResults, xpathResult);
+        } catch (QueryCancelledException e) {
+            xpathResult = null;
+            partial = true;
+        }
+        if (xpathResult != null && isStreaming(req) && !(count == 1 && isEXPathResponse(xpathResult))) {
+            // serialize results as the response writer pulls them; an http:response has to be
+            // handled before writing begins, so that is always buffered
+            String method = context.getSerializer().getOutputProperty(Serializer.Property.METHOD);
+            XQueryResultStream resultStream = new XQueryResultStream(this, eval, context, query, method, 
+                    xpathResult, queryResults, len, tstart);
+            addDocList (rb, eval);
+            rsp.add("xpath-results", resultStream);
+            return;
+        }
+        if (writesLuxResponse(req)) {
+            // serialize nodes to bytes that LuxResponseWriter can write directly; other response 
+            // writers need Strings
+            ResultBuffer resultBuffer = solrIndexConfig.newResultBuffer();
+            context.setResultBuffer(resultBuffer);
+            req.getContext().put(RESULT_BUFFER, resultBuffer);
+        }
+        String err = null;
+        try {
+            while (xpathResult != null) {
+                if (count == 1 && isEXPathResponse(xpathResult)) {
+                    err = handleEXPathResponse(req, rsp, context, xpathResults, xpathResult);
                     if (queryResults.hasNext()) {
                         logger.warn ("Ignoring results following http:response, which should be the sole item in its result");
                     }
                     break;
                 }
+                err = safeAddResult(context, xpathResults, xpathResult);
+                if (err != null) {
+                    break;
+                }
+                if (len > 0 && xpathResults.size() >= len) {
+                    break;
+                }
+                if (cancellationToken.isCancelled()) {
+                    partial = true;
+                    break;
+                }
+                if (!queryResults.hasNext()) {
+                    break;
+                }
+                xpathResult = queryResults.next();
+                ++count;
             }
-            err = safeAddResult(xpathResults, xpathResult);
-            if (err != null) {
-                xpathResult = null;
-                break;
-            }
-            if ((len > 0 && xpathResults.size() >= len)
-                    || (timeAllowed > 0 && (System.currentTimeMillis() - tstart) > timeAllowed)) {
-                break;
+        } catch (QueryCancelledException e) {
+            partial = true;
+        }
+        ArrayList<TransformerException> errors = getEvaluationErrors(eval);
+        if (errors.size() < eval.getErrorListener().getErrors().size()) {
+            // Saxon reported the cancellation as an error
+            partial = true;
+        }
+        if (partial) {
+            // let the client know that the evaluation was cut short, as Solr does when timeAllowed is exceeded
+            NamedList<Object> header = rsp.getResponseHeader();
+            if (header != null) {
+                header.add("partialResults", Boolean.TRUE);
             }
         }
-        ArrayList<TransformerException> errors = eval.getErrorListener().getErrors();
+        String flushError = flushUpdates(context);
         if (!errors.isEmpty()) {
             err = formatError(query, errors, eval.getQueryStats());
             if (xpathResults.size() == 0) {
@@ -353,17 +615,13 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
                                      // results
             }
         }
+        if (err == null) {
+            err = flushError;
+        }
         if (err != null) {
             rsp.add("xpath-error", err);
         }
-        if (rb.getResults() == null) {
-            // create a dummy doc list if previous query processing didn't retrieve any docs
-            // In distributed operation, there will be doc results, otherwise none.
-            SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
-            result.setDocList(new DocSlice(0, 0, null, null, eval.getQueryStats().docCount, 0));
-            rb.setResult(result);
-            rsp.add("response", rb.getResults().docList);
-        }
+        addDocList (rb, eval);
         if (xpathResults != null) {
             rsp.add("xpath-results", xpathResults);
             if (logger.isDebugEnabled()) {
@@ -375,35 +633,82 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
                     "0 results, " + (System.currentTimeMillis() - tstart) + "ms");
         }
         if (err == null && context.isCommitPending()) {
-            doCommit();
+            doCommit(context);
         }
     }
     
-    protected void doCommit () {
-        boolean isCloud = shards != null && shards.length > 1;
-        SolrQueryRequest req  = new SolrQueryRequestBase (core, new ModifiableSolrParams()) {};
-        CommitUpdateCommand cmd = new CommitUpdateCommand(req, false);
-        cmd.softCommit = true;
-        // cmd.expungeDeletes = false;
-        // cmd.waitFlush = true;
-        // cmd.waitSearcher = true;
-        LoggerFactory.getLogger(getClass()).debug ("commit {}", shards);
-        try {
-            if (isCloud) {
-                SolrQueryResponse rsp = new SolrQueryResponse();
-                // ((ModifiableSolrParams)req.getParams()).add(ShardParams.SHARDS, getShardURLs(false));
-                UpdateRequestProcessorChain updateChain = core.getUpdateProcessingChain("lux-update-chain");
-                updateChain.createProcessor(req, rsp).processCommit(cmd);
-            } else {
-                // commit locally
-                core.getUpdateHandler().commit(cmd);
+    /**
+     * @return the errors reported while evaluating a query, apart from those reporting its cancellation,
+     * which is signalled to the client by returning partial results instead
+     */
+    static ArrayList<TransformerException> getEvaluationErrors (Evaluator eval) {
+        ArrayList<TransformerException> errors = new ArrayList<TransformerException>();
+        for (TransformerException te : eval.getErrorListener().getErrors()) {
+            if (! (te.getCause() instanceof QueryCancelledException)) {
+                errors.add(te);
             }
-        } catch (IOException e) {
-            throw new LuxException(e);
         }
+        return errors;
+    }
+    
+    private void addDocList (ResponseBuilder rb, Evaluator eval) {
+        if (rb.getResults() == null) {
+            // create a dummy doc list if previous query processing didn't retrieve any docs
+            // In distributed operation, there will be doc results, otherwise none.
+            SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
+            result.setDocList(new DocSlice(0, 0, null, null, eval.getQueryStats().docCount, 0));
+            rb.setResult(result);
+            rb.rsp.add("response", rb.getResults().docList);
+        }
+    }
+    
+    /**
+     * Streaming is only possible when the response will be written by {@link LuxResponseWriter}, since
+     * other writers don't know how to write an {@link XQueryResultStream}.
+     * @return whether the request asked for streaming results using lux.streaming=true
+     */
+    private boolean isStreaming (SolrQueryRequest req) {
+        return req.getParams().getBool(LUX_STREAMING, false) && writesLuxResponse(req);
+    }
+    
+    private boolean writesBinaryResponse (SolrQueryRequest req) {
+        return req.getCore().getQueryResponseWriter(req) instanceof BinaryResponseWriter;
+    }
+
+    private boolean writesLuxResponse (SolrQueryRequest req) {
+        return req.getCore().getQueryResponseWriter(req) instanceof LuxResponseWriter;
+    }
+    
+    private boolean isEXPathResponse (XdmItem item) {
+        if (item.isAtomicValue()) {
+            return false;
+        }
+        net.sf.saxon.s9api.QName name = ((XdmNode)item).getNodeName();
+        return name != null && name.getNamespaceURI().equals(EXPATH_HTTP_NS) && name.getLocalName().equals("response");
+    }
+    
+    /**
+     * Sends any updates the query has buffered.
+     * @return a description of the updates that failed, or null if all succeeded
+     */
+    String flushUpdates (SolrQueryContext context) {
+        try {
+            context.getDocWriter().flush();
+        } catch (LuxException e) {
+            return e.getMessage();
+        }
+        return null;
     }
     
-    private String handleEXPathResponse(SolrQueryRequest req, SolrQueryResponse rsp, NamedList<Object> xpathResults, XdmItem xpathResult) {
+    protected void doCommit (SolrQueryContext context) {
+        String[] shards = context.getShards();
+        boolean isCloud = shards != null && shards.length > 1;
+        boolean wait = context.getSolrQueryRequest().getParams().getBool(LUX_WAIT_COMMIT, false);
+        LoggerFactory.getLogger(getClass()).debug ("commit {}", shards);
+        solrIndexConfig.getCommitScheduler().commit(isCloud, wait);
+    }
+    
+    private String handleEXPathResponse(SolrQueryRequest req, SolrQueryResponse rsp, SolrQueryContext context, NamedList<Object> xpathResults, XdmItem xpathResult) {
         XdmNode expathResponse;
         expathResponse = (XdmNode) xpathResult;
         HttpServletRequest httpReq = (HttpServletRequest) req.getContext().get(SolrQueryContext.LUX_HTTP_SERVLET_REQUEST);
@@ -468,7 +773,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
                 XdmSequenceIterator bodyKids = child.axisIterator(Axis.CHILD);
                 while (bodyKids.hasNext()) {
                     XdmNode result = (XdmNode) bodyKids.next();
-                    String err = safeAddResult(xpathResults, result);
+                    String err = safeAddResult(context, xpathResults, result);
                     if (err != null) {
                         return err;
                     }
@@ -512,7 +817,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
         if (hasLuxHttp) {
             context.bindVariable(LUX_HTTP, buildHttpParams (evaluator, req,
-                queryPath != null ? queryPath : "/xquery"
+                context.getQueryPath() != null ? context.getQueryPath() : "/xquery"
                 ));
         }
         if (hasEXpathRequest) {
@@ -529,7 +834,7 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         return formatError(query, errors, null);
     }
 
-    private String formatError(String query, List<TransformerException> errors, QueryStats queryStats) {
+    String formatError(String query, List<TransformerException> errors, QueryStats queryStats) {
         StringBuilder buf = new StringBuilder();
         if (queryStats != null && queryStats.optimizedQuery != null) {
             query = queryStats.optimizedQuery;
@@ -562,9 +867,9 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         return (XdmNode) evaluator.build(new StringReader(buildHttpInfo(req)), path);
     }
 
-    protected String safeAddResult (NamedList<Object> xpathResults, XdmItem item) {
+    protected String safeAddResult (SolrQueryContext context, NamedList<Object> xpathResults, XdmItem item) {
         try {
-            addResult (xpathResults, item);
+            addResult (context, xpathResults, item);
             return null;
         } catch (SaxonApiException e) {
             return e.getMessage();
@@ -575,7 +880,16 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         }
     }
 
-    protected void addResult(NamedList<Object> xpathResults, XdmItem item) throws SaxonApiException {
+    /**
+     * Adds a result to the list of results.  Atomic values are added as Java values.  Nodes are serialized,
+     * either into the context's result buffer, in which case a {@link ResultBuffer.Segment} referring to the
+     * bytes is added, or, if there is no result buffer, to a String.
+     * @param context the evaluation context, which supplies the serializer and tracks the size of the results
+     * @param xpathResults the results
+     * @param item the item to add
+     * @throws SaxonApiException if there is an error serializing a node
+     */
+    protected void addResult(SolrQueryContext context, NamedList<Object> xpathResults, XdmItem item) throws SaxonApiException {
         if (item.isAtomicValue()) {
             // We need to get Java primitive values that Solr knows how to
             // marshal
@@ -583,34 +897,11 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
             AtomicValue value = (AtomicValue) xdmValue.getUnderlyingValue();
             try {
                 String typeName = value.getItemType().toString();
-                Object javaValue;
+                Object javaValue = toJavaValue(value);
                 if (value instanceof DecimalValue) {
-                    javaValue = ((DecimalValue) value).getDoubleValue();
-                    addResultBytes(8);
-                } else if (value instanceof QNameValue) {
-                    javaValue = ((QNameValue) value).getClarkName();
-                    addResultBytes(((String) javaValue).length() * 2); // close
-                                                                       // enough,
-                                                                       // modulo
-                                                                       // surrogates
-                } else if (value instanceof GDateValue) {
-                    if (value instanceof GMonthValue) {
-                        javaValue = ((GMonthValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GYearValue) {
-                        javaValue = ((GYearValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GDayValue) {
-                        javaValue = ((GDayValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GMonthDayValue) {
-                        javaValue = ((GMonthDayValue) value).getPrimitiveStringValue().toString();
-                    } else if (value instanceof GYearMonthValue) {
-                        javaValue = ((GYearMonthValue) value).getPrimitiveStringValue().toString();
-                    } else {
-                        javaValue = SequenceTool.convertToJava(value);
-                    }
-                    addResultBytes(javaValue.toString().length() * 2);
+                    addResultBytes(context, 8);
                 } else {
-                    javaValue = SequenceTool.convertToJava(value);
-                    addResultBytes (javaValue.toString().length() * 2);
+                    addResultBytes(context, javaValue.toString().length() * 2); // close enough, modulo surrogates
                 }
                 // TODO hexBinary and base64Binary
                 xpathResults.add(typeName, javaValue);
@@ -620,21 +911,83 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         } else {
             XdmNode node = (XdmNode) item;
             XdmNodeKind nodeKind = node.getNodeKind();
-            StringWriter buf = new StringWriter ();
-            // TODO: tinybin serialization!
-            serializer.setOutputWriter(buf);
-            serializer.serializeNode(node);
-            String xml = buf.toString();
-            addResultBytes(xml.length() * 2);
-            xpathResults.add(nodeKind.toString().toLowerCase(), xml);
+            ResultBuffer resultBuffer = context.getResultBuffer();
+            Serializer serializer = context.getSerializer();
+            if (context.isTinyBinaryResults() && (nodeKind == XdmNodeKind.DOCUMENT || nodeKind == XdmNodeKind.ELEMENT)) {
+                ByteBuffer tinybin = toTinyBinary(node);
+                addResultBytes(context, tinybin.remaining());
+                xpathResults.add(nodeKind.toString().toLowerCase(), tinybin);
+            } else if (resultBuffer != null) {
+                long start = resultBuffer.size();
+                serializer.setOutputStream(resultBuffer);
+                serializer.serializeNode(node);
+                ResultBuffer.Segment xml = resultBuffer.segmentFrom(start);
+                addResultBytes(context, xml.length());
+                xpathResults.add(nodeKind.toString().toLowerCase(), xml);
+            } else {
+                StringWriter buf = new StringWriter ();
+                serializer.setOutputWriter(buf);
+                serializer.serializeNode(node);
+                String xml = buf.toString();
+                addResultBytes(context, xml.length() * 2);
+                xpathResults.add(nodeKind.toString().toLowerCase(), xml);
+            }
+        }
+    }
+
+    /**
+     * @param node a document or element node
+     * @return the binary encoding of the tree rooted at the node.  Unless the node is the root of a 
+     * TinyTree, it is first copied into a new document.
+     * @throws SaxonApiException if an error occurs copying the node
+     */
+    ByteBuffer toTinyBinary (XdmNode node) throws SaxonApiException {
+        NodeInfo nodeInfo = node.getUnderlyingNode();
+        if (nodeInfo.getNodeKind() != Type.DOCUMENT || ! (nodeInfo instanceof TinyNodeImpl)) {
+            DocumentBuilder builder = solrIndexConfig.getCompiler().getProcessor().newDocumentBuilder();
+            builder.setTreeModel(TreeModel.TINY_TREE);
+            nodeInfo = builder.build(nodeInfo).getUnderlyingNode();
         }
+        return new TinyBinary(((TinyNodeImpl) nodeInfo).getTree()).getByteBuffer();
     }
 
-    private void addResultBytes(int count) {
-        if (resultByteSize + count > MAX_RESULT_SIZE) {
+    /**
+     * @param value an atomic value
+     * @return a Java primitive value that Solr knows how to marshal
+     * @throws XPathException if the value cannot be converted
+     */
+    static Object toJavaValue (AtomicValue value) throws XPathException {
+        if (value instanceof DecimalValue) {
+            return ((DecimalValue) value).getDoubleValue();
+        }
+        if (value instanceof QNameValue) {
+            return ((QNameValue) value).getClarkName();
+        }
+        if (value instanceof GMonthValue) {
+            return ((GMonthValue) value).getPrimitiveStringValue().toString();
+        } else if (value instanceof GYearValue) {
+            return ((GYearValue) value).getPrimitiveStringValue().toString();
+        } else if (value instanceof GDayValue) {
+            return ((GDayValue) value).getPrimitiveStringValue().toString();
+        } else if (value instanceof GMonthDayValue) {
+            return ((GMonthDayValue) value).getPrimitiveStringValue().toString();
+        } else if (value instanceof GYearMonthValue) {
+            return ((GYearMonthValue) value).getPrimitiveStringValue().toString();
+        }
+        return SequenceTool.convertToJava(value);
+    }
+
+    private void addResultBytes(SolrQueryContext context, int count) {
+        long resultByteSize = context.getResultByteSize();
+        ResultMemoryBudget budget = solrIndexConfig.getResultMemoryBudget();
+        if (resultByteSize + count > context.getMaxResultSize()) {
+            budget.countTruncation();
             throw new ResourceExhaustedException("Maximum result size exceeded, returned result has been truncated");
         }
-        resultByteSize += count;
+        if (! budget.reserve(count)) {
+            throw new ResourceExhaustedException("Server result memory exhausted, returned result has been truncated");
+        }
+        context.setResultByteSize(resultByteSize + count);
     }
 
     // Hand-coded serialization may be a bit fragile, but the only alternative
@@ -873,22 +1226,59 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         return core;
     }
     
+    /**
+     * @return the evaluator in use by the current thread, or null if there is none
+     */
     public Evaluator getEvaluator () {
         return evalHolder.get();
     }
+    
+    /**
+     * Records the evaluator in use by the current thread; evaluation that continues beyond
+     * {@link #process(ResponseBuilder)}, as when results are streamed, must supply the evaluator again.
+     * @param eval the evaluator, or null to clear the evaluator
+     */
+    static void setEvaluator (Evaluator eval) {
+        if (eval == null) {
+            evalHolder.remove();
+        } else {
+            evalHolder.set(eval);
+        }
+    }
 
     public SearchHandler getSearchHandler() {
         return searchHandler;
     }
-    
-    public String[] getCurrentShards() {
-        return shards;
+
+    /**
+     * @return the executor used to prefetch batches of distributed search results, or null if
+     * prefetching is disabled
+     */
+    public ExecutorService getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * @return the number of updates buffered by a distributed request before they are sent to the shards
+     */
+    public int getCloudWriteBatchSize () {
+        return cloudWriteBatchSize;
     }
 
-    public String[] getCurrentSlices() {
-        return slices;
+    /**
+     * @return the approximate maximum size, in bytes, of the documents in a batch of distributed updates
+     */
+    public long getCloudWriteBatchBudget () {
+        return cloudWriteBatchBudget;
     }
 
+    /**
+     * @return the approximate maximum size, in bytes, of a batch of distributed search results
+     */
+    public long getCloudBatchBudget() {
+        return cloudBatchBudget;
+    }
+    
     private String xmlEscape(String value) {
         return value.replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll("\"", "&quot;");
     }
@@ -0,0 +1,219 @@
+package lux.solr;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.transform.TransformerException;
+
+import lux.Evaluator;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * The results of a query evaluated in streaming mode (lux.streaming=true).  Rather than serializing all
+ * of the results into the response before it is written, {@link XQueryComponent} places one of these in
+ * the response, and {@link LuxResponseWriter} pulls results from it and serializes each one directly to
+ * the output.  Because the output has already begun by the time any error is encountered, errors are
+ * reported after the results, and the response status is not affected by them.
+ *
+ * Once the results have been written, {@link #close()} must be called; it completes any pending
+ * commit and releases the serializer.
+ */
+public class XQueryResultStream implements Iterator<XdmItem> {
+
+    private final XQueryComponent component;
+    private final Evaluator eval;
+    private final SolrQueryContext context;
+    private final Iterator<XdmItem> results;
+    private final String query;
+    private final String serializationMethod;
+    private final int len;
+    private final long tstart;
+    private final List<String> errors;
+
+    private XdmItem next;
+    // an item read ahead by isSingleNode()
+    private XdmItem pending;
+    private int count;
+    private Serializer serializer;
+    private boolean closed;
+
+    XQueryResultStream (XQueryComponent component, Evaluator eval, SolrQueryContext context, String query, String serializationMethod,
+            XdmItem first, Iterator<XdmItem> results, int len, long tstart) {
+        this.component = component;
+        this.eval = eval;
+        this.context = context;
+        this.query = query;
+        this.serializationMethod = serializationMethod;
+        this.next = first;
+        this.results = results;
+        this.len = len;
+        this.tstart = tstart;
+        errors = new ArrayList<String>();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if ((len > 0 && count >= len) || context.getCancellationToken().isCancelled()) {
+            return false;
+        }
+        if (pending != null) {
+            next = pending;
+            pending = null;
+        } else {
+            next = fetch();
+        }
+        return next != null;
+    }
+
+    private XdmItem fetch () {
+        // evaluation continues in the response writer, after the component has finished processing
+        XQueryComponent.setEvaluator(eval);
+        try {
+            if (results.hasNext()) {
+                return results.next();
+            }
+            // send updates now, so that any errors can be reported along with the results
+            String flushError = component.flushUpdates(context);
+            if (flushError != null) {
+                errors.add(flushError);
+            }
+        } catch (QueryCancelledException e) {
+            // end the results
+        } catch (RuntimeException e) {
+            errors.add(e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            XQueryComponent.setEvaluator(null);
+        }
+        return null;
+    }
+
+    @Override
+    public XdmItem next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException ();
+        }
+        XdmItem item = next;
+        next = null;
+        ++count;
+        return item;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return whether the result consists of a single document or element, and no errors have been
+     * reported so far.  XML results are wrapped in a &lt;results&gt; element unless this is true.
+     */
+    public boolean isSingleNode () {
+        if (count > 0 || next == null || next.isAtomicValue() || ! getErrors().isEmpty()) {
+            return false;
+        }
+        XdmNodeKind kind = ((XdmNode) next).getNodeKind();
+        if (kind != XdmNodeKind.DOCUMENT && kind != XdmNodeKind.ELEMENT) {
+            return false;
+        }
+        if (len == 1) {
+            return true;
+        }
+        // read ahead one item
+        pending = fetch();
+        return pending == null && getErrors().isEmpty();
+    }
+
+    /**
+     * Serialize a result item to the writer.  Atomic values are written as their string values; nodes
+     * are serialized using the method (xml or html) that was requested for the query.
+     * @param item the item to write
+     * @param writer the output to write to
+     * @return false if an error occurred: the error is recorded, and no more results should be written
+     * @throws IOException if an error occurs writing to the writer
+     */
+    public boolean write (XdmItem item, Writer writer) throws IOException {
+        if (item.isAtomicValue()) {
+            AtomicValue value = (AtomicValue) ((XdmAtomicValue) item).getUnderlyingValue();
+            Object javaValue;
+            try {
+                javaValue = XQueryComponent.toJavaValue(value);
+            } catch (XPathException e) {
+                javaValue = value;
+            }
+            writer.write(javaValue.toString());
+            return true;
+        }
+        if (serializer == null) {
+            serializer = component.getSolrIndexConfig().checkoutSerializer();
+            serializer.setOutputProperty(Serializer.Property.METHOD, serializationMethod);
+        }
+        serializer.setOutputWriter(writer);
+        try {
+            serializer.serializeNode((XdmNode) item);
+        } catch (SaxonApiException e) {
+            errors.add(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the errors reported while evaluating the query and serializing its results, so far
+     */
+    public List<String> getErrors () {
+        ArrayList<TransformerException> evalErrors = XQueryComponent.getEvaluationErrors(eval);
+        if (evalErrors.isEmpty()) {
+            return errors;
+        }
+        List<String> allErrors = new ArrayList<String>(errors);
+        allErrors.add(0, component.formatError(query, evalErrors, eval.getQueryStats()));
+        return allErrors;
+    }
+
+    /**
+     * Sends any buffered updates made by the query, commits them, if it completed without error, and
+     * releases resources.
+     */
+    public void close () {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (serializer != null) {
+            component.getSolrIndexConfig().returnSerializer(serializer);
+            serializer = null;
+        }
+        String flushError = component.flushUpdates(context);
+        if (flushError != null) {
+            // the results were not all read; too late to report this to the client
+            LoggerFactory.getLogger(XQueryResultStream.class).error(flushError);
+            errors.add(flushError);
+        }
+        if (getErrors().isEmpty() && context.isCommitPending()) {
+            component.doCommit(context);
+        }
+        LoggerFactory.getLogger(XQueryResultStream.class).debug("streamed {} results in {}ms", count,
+                System.currentTimeMillis() - tstart);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
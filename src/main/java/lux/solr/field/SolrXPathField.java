@@ -1,72 +1,159 @@
 package lux.solr.field;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import lux.exception.LuxException;
 import lux.index.XmlIndexer;
 import lux.index.field.XPathField;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmItem;
-import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.AtomicValue;
+import net.sf.saxon.value.BooleanValue;
+import net.sf.saxon.value.DateTimeValue;
+import net.sf.saxon.value.IntegerValue;
+import net.sf.saxon.value.NumericValue;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.schema.BoolField;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieDateField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.schema.TrieField.TrieTypes;
 
 public class SolrXPathField extends XPathField {
 
     private final SchemaField schemaField;
 
-    public SolrXPathField(String name, String xpath, Analyzer analyzer, Store isStored, SchemaField schemaField) {
+    private final XPathFieldEvaluator evaluator;
+
+    private final int expression;
+
+    // the type of Trie field, or null if the field is not a Trie field
+    private final TrieTypes trieType;
+
+    private final boolean isBoolean;
+
+    /**
+     * @param name the name of the field
+     * @param xpath the expression whose values are indexed in the field
+     * @param analyzer the field's analyzer
+     * @param isStored whether the field's values are stored
+     * @param schemaField the definition of the field in the Solr schema
+     * @param evaluator compiles and evaluates the expression
+     * @throws SaxonApiException if the expression is invalid
+     */
+    public SolrXPathField(String name, String xpath, Analyzer analyzer, Store isStored, SchemaField schemaField, XPathFieldEvaluator evaluator) 
+            throws SaxonApiException {
         super(name, xpath, analyzer, isStored, Type.SOLR_FIELD);
         this.schemaField = schemaField;
+        this.evaluator = evaluator;
+        expression = evaluator.compile(xpath);
+        FieldType fieldType = schemaField.getType();
+        if (fieldType instanceof TrieField) {
+            trieType = ((TrieField) fieldType).getType();
+        } else if (fieldType instanceof TrieDateField) {
+            trieType = TrieTypes.DATE;
+        } else {
+            trieType = null;
+        }
+        isBoolean = fieldType instanceof BoolField;
     }
 
     public SchemaField getSchemaField() {
         return schemaField;
     }
     
+    /**
+     * Converts the values of the field's expression into fields.  Numeric and dateTime values are passed
+     * to Trie fields in their native form, rather than being converted to strings and parsed again.  Values
+     * the field type cannot accept are counted by the {@link XPathFieldEvaluator}, and skipped.
+     */
     @Override
     public Iterable<?> getValues(XmlIndexer indexer) {
         XdmValue value;
         try {
-            value = indexer.evaluateXPath (getXPath());
+            value = evaluator.evaluate (expression, indexer);
         } catch (SaxonApiException e) {
             throw new LuxException("error getting values for field: " + getName(), e);
         }
-        return new SolrFieldValueIterator(value.iterator());
-    }
-    
-    public class SolrFieldValueIterator implements Iterator<Object>, Iterable<Object> {
-        
-        private final XdmSequenceIterator sequence;
-
-        SolrFieldValueIterator (XdmSequenceIterator sequence) {
-            this.sequence = sequence;
-        }
-
-        @Override
-        public boolean hasNext() {
-            return sequence.hasNext();
-        }   
-
-        @Override
-        public Object next() {
-            XdmItem item = sequence.next();
-            String stringValue = item.getStringValue();
-            return getSchemaField().createField(stringValue, 1.0f);
-        }
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+        ArrayList<IndexableField> fields = new ArrayList<IndexableField>(value.size());
+        FieldType fieldType = schemaField.getType();
+        for (XdmItem item : value) {
+            Object fieldValue = toFieldValue(item);
+            if (fieldValue == null) {
+                evaluator.countInvalidValue(getName(), item.getStringValue(), 
+                        new NumberFormatException("out of range for " + trieType));
+                continue;
+            }
+            List<IndexableField> created;
+            try {
+                created = fieldType.createFields(schemaField, fieldValue, 1.0f);
+            } catch (RuntimeException e) {
+                // NumberFormatException, or SolrException for an invalid date
+                evaluator.countInvalidValue(getName(), fieldValue, e);
+                continue;
+            }
+            for (IndexableField field : created) {
+                if (field != null) {
+                    fields.add(field);
+                }
+            }
         }
+        return fields;
+    }
 
-        @Override
-        public Iterator<Object> iterator() {
-            return this;
+    /**
+     * @return the value to pass to the field type, or null if the item is an integer that is out of range
+     * for the field
+     */
+    private Object toFieldValue (XdmItem item) {
+        if (item.isAtomicValue() && (trieType != null || isBoolean)) {
+            AtomicValue atomic = (AtomicValue) item.getUnderlyingValue();
+            if (isBoolean) {
+                if (atomic instanceof BooleanValue) {
+                    return ((BooleanValue) atomic).getBooleanValue() ? "true" : "false";
+                }
+                return item.getStringValue();
+            }
+            switch (trieType) {
+            case INTEGER: case LONG:
+                if (atomic instanceof IntegerValue) {
+                    long longValue;
+                    try {
+                        longValue = ((IntegerValue) atomic).longValue();
+                    } catch (XPathException e) {
+                        // too big for a long
+                        return null;
+                    }
+                    if (trieType == TrieTypes.LONG) {
+                        return longValue;
+                    }
+                    // TrieField would silently truncate a long to an int
+                    if (longValue < Integer.MIN_VALUE || longValue > Integer.MAX_VALUE) {
+                        return null;
+                    }
+                    return Integer.valueOf((int) longValue);
+                }
+                break;
+            case FLOAT: case DOUBLE:
+                if (atomic instanceof NumericValue) {
+                    return ((NumericValue) atomic).getDoubleValue();
+                }
+                break;
+            case DATE:
+                if (atomic instanceof DateTimeValue) {
+                    return ((DateTimeValue) atomic).getCalendar().getTime();
+                }
+                break;
+            }
         }
-        
+        return item.getStringValue();
     }
 
 }
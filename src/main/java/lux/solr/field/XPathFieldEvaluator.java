@@ -0,0 +1,139 @@
+package lux.solr.field;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lux.index.XmlIndexer;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles the XPath expressions of all the {@link SolrXPathField}s of a core once, when the fields are
+ * configured, rather than for every document.  Each distinct expression is compiled only once, and is
+ * evaluated at most once for each document, however many fields share it.  The values of the document
+ * being indexed by each thread are retained until {@link #clear()} is called, once its fields have been
+ * created.
+ */
+public class XPathFieldEvaluator {
+
+    private final XPathCompiler xpathCompiler;
+
+    private final HashMap<String,Integer> expressionIndex;
+
+    private final ArrayList<XPathExecutable> expressions;
+
+    private final ThreadLocal<DocumentValues> values;
+
+    private final AtomicLong invalidValues;
+
+    /**
+     * @param processor the processor used to compile the expressions
+     * @param namespaces namespace bindings (prefix to uri) in scope for all of the expressions
+     */
+    public XPathFieldEvaluator (Processor processor, Map<String,String> namespaces) {
+        xpathCompiler = processor.newXPathCompiler();
+        if (namespaces != null) {
+            for (Entry<String,String> binding : namespaces.entrySet()) {
+                xpathCompiler.declareNamespace(binding.getKey(), binding.getValue());
+            }
+        }
+        expressionIndex = new HashMap<String, Integer>();
+        expressions = new ArrayList<XPathExecutable>();
+        values = new ThreadLocal<DocumentValues>();
+        invalidValues = new AtomicLong();
+    }
+
+    /**
+     * Compiles an expression, unless an identical one has already been compiled.  All expressions must be
+     * compiled before any documents are evaluated.
+     * @param xpath the expression
+     * @return the number identifying the expression, to be passed to {@link #evaluate(int, XmlIndexer)}
+     * @throws SaxonApiException if the expression is invalid
+     */
+    public synchronized int compile (String xpath) throws SaxonApiException {
+        String key = xpath.trim();
+        Integer index = expressionIndex.get(key);
+        if (index == null) {
+            expressions.add(xpathCompiler.compile(key));
+            index = expressions.size() - 1;
+            expressionIndex.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param index the number of the expression, as returned by {@link #compile(String)}
+     * @param indexer an indexer that has just indexed a document
+     * @return the value of the expression, evaluated with the indexer's document as its context
+     * @throws SaxonApiException if an error occurs evaluating the expression
+     */
+    public XdmValue evaluate (int index, XmlIndexer indexer) throws SaxonApiException {
+        XdmNode doc = indexer.getXdmNode();
+        DocumentValues docValues = values.get();
+        if (docValues == null || docValues.document != doc.getUnderlyingNode()) {
+            docValues = new DocumentValues(doc.getUnderlyingNode(), expressions.size());
+            values.set(docValues);
+        }
+        XdmValue value = docValues.values[index];
+        if (value == null) {
+            XPathSelector selector = expressions.get(index).load();
+            selector.setContextItem(doc);
+            value = selector.evaluate();
+            docValues.values[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Releases the document, and the values, retained for the current thread.
+     */
+    public void clear () {
+        values.remove();
+    }
+
+    /**
+     * records a value that could not be indexed because it was not valid for its field's type
+     * @param field the name of the field
+     * @param value the value
+     * @param e the exception raised by the field type
+     */
+    public void countInvalidValue (String field, Object value, Exception e) {
+        invalidValues.incrementAndGet();
+        LoggerFactory.getLogger(XPathFieldEvaluator.class).debug("invalid value for field {}: {}: {}", new Object[] { field, value, e.getMessage() });
+    }
+
+    /**
+     * @return the number of values that have been skipped because they were not valid for their field's type
+     */
+    public long getInvalidValueCount () {
+        return invalidValues.get();
+    }
+
+    private static class DocumentValues {
+
+        private final NodeInfo document;
+
+        private final XdmValue[] values;
+
+        DocumentValues (NodeInfo document, int size) {
+            this.document = document;
+            values = new XdmValue[size];
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,60 @@
+package lux.solr;
+
+/**
+ * Measures the throughput of {@link DocIdAllocator} with a number of threads contending for a single
+ * allocator, as when many update requests arrive at one node:
+ * 
+ * <pre>java lux.solr.DocIdAllocatorBenchmark [threads] [ids per thread]</pre>
+ * 
+ * This is a benchmark to be run by hand, not a test, and so reports its result on the console.
+ * {@link DocIdAllocatorTest#testThroughput()} runs it with a fixed workload, and checks that the 
+ * throughput exceeds a (low) minimum.
+ */
+public class DocIdAllocatorBenchmark {
+
+    public static void main (String[] args) throws InterruptedException {
+        int nthreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int count = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        final DocIdAllocator allocator = new DocIdAllocator(1);
+        // warm up
+        run (allocator, nthreads, count / 10);
+        long elapsed = run (allocator, nthreads, count);
+        long total = (long) nthreads * count;
+        System.out.println(String.format("%d threads allocated %d ids in %d ms: %.0f ids/sec", nthreads, total,
+                elapsed, total * 1000.0 / Math.max(elapsed, 1)));
+    }
+
+    /**
+     * @return the elapsed time, in milliseconds, for each of the threads to allocate count ids
+     */
+    static long run (final DocIdAllocator allocator, int nthreads, final int count) throws InterruptedException {
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            threads[i] = new Thread () {
+                @Override
+                public void run () {
+                    long last = 0;
+                    for (int j = 0; j < count; j++) {
+                        last = allocator.next();
+                    }
+                    if (last == 0) {
+                        throw new IllegalStateException();
+                    }
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
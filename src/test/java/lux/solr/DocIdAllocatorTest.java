@@ -0,0 +1,95 @@
+package lux.solr;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class DocIdAllocatorTest {
+
+    @Test
+    public void testMonotonic () {
+        DocIdAllocator allocator = new DocIdAllocator(3);
+        long prev = allocator.next();
+        // many more than fit in a single millisecond
+        for (int i = 0; i < 100000; i++) {
+            long id = allocator.next();
+            assertTrue ("id did not increase", id > prev);
+            assertEquals (3, (id >>> DocIdAllocator.SEQUENCE_BITS) & DocIdAllocator.MAX_NODE);
+            prev = id;
+        }
+        // ids sort after those created using the old scheme
+        assertTrue (prev > (System.currentTimeMillis() - 1000) << 22);
+    }
+
+    @Test
+    public void testConcurrentAllocation () throws Exception {
+        final DocIdAllocator a = new DocIdAllocator(1);
+        final DocIdAllocator b = new DocIdAllocator(2);
+        final int count = 50000;
+        final long[][] ids = new long[8][count];
+        final AtomicBoolean ordered = new AtomicBoolean(true);
+        Thread[] threads = new Thread[ids.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread () {
+                @Override
+                public void run () {
+                    DocIdAllocator allocator = thread % 2 == 0 ? a : b;
+                    for (int i = 0; i < count; i++) {
+                        ids[thread][i] = allocator.next();
+                        if (i > 0 && ids[thread][i] <= ids[thread][i-1]) {
+                            ordered.set(false);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue ("ids allocated by a thread did not increase", ordered.get());
+        HashSet<Long> distinct = new HashSet<Long>();
+        for (long[] threadIds : ids) {
+            for (long id : threadIds) {
+                assertTrue ("duplicate id " + id, distinct.add(id));
+            }
+        }
+    }
+
+    @Test
+    public void testNodeId () {
+        assertEquals (0, DocIdAllocator.nodeIdFor(null));
+        assertEquals (7, DocIdAllocator.nodeIdFor("core_node7"));
+        assertEquals (DocIdAllocator.MAX_NODE, DocIdAllocator.nodeIdFor("core_node" + DocIdAllocator.MAX_NODE));
+        // numbers beyond the range wrap around, and names without a number are hashed, rather than failing
+        assertEquals (1, DocIdAllocator.nodeIdFor("core_node1025"));
+        assertNodeIdInRange ("core_node10000000000");
+        assertNodeIdInRange ("some-core");
+    }
+
+    @Test
+    public void testThroughput () throws InterruptedException {
+        DocIdAllocator allocator = new DocIdAllocator(1);
+        int nthreads = 4, count = 250000;
+        // warm up
+        DocIdAllocatorBenchmark.run (allocator, nthreads, count / 10);
+        long elapsed = DocIdAllocatorBenchmark.run (allocator, nthreads, count);
+        // a generous floor: contended allocation runs at several million ids per second
+        long idsPerSecond = nthreads * count * 1000L / Math.max(elapsed, 1);
+        assertTrue ("only " + idsPerSecond + " ids/sec", idsPerSecond > 200000);
+    }
+
+    private void assertNodeIdInRange (String coreNodeName) {
+        int node = DocIdAllocator.nodeIdFor(coreNodeName);
+        assertTrue (node >= 0 && node <= DocIdAllocator.MAX_NODE);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -3,19 +3,38 @@ package lux.solr;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -58,6 +77,88 @@ public class LuxSolrTest extends BaseSolrTest {
         // assertQueryCount (1, LUX_ATT_TEXT + ":type\\:random");
     }
     
+    @Test public void testIndexingOrder () throws Exception {
+        // documents in a single request are indexed in parallel, but must be applied in order
+        Collection<SolrInputDocument> docs = new ArrayList<SolrInputDocument> ();
+        for (int i = 0; i < 50; i++) {
+            addSolrDoc ("/order/" + (i % 5), "<doc><n>" + i + "</n></doc>", docs, "uri", "xml");
+        }
+        solr.add (docs);
+        solr.commit();
+        try {
+            assertQueryCount (1, 0, "xs:string", "45 46 47 48 49", "string-join(for $i in 0 to 4 return doc(concat('/order/', $i))/doc/n, ' ')");
+        } finally {
+            List<String> uris = new ArrayList<String>();
+            for (int i = 0; i < 5; i++) {
+                uris.add("/order/" + i);
+            }
+            solr.deleteById(uris);
+            solr.commit();
+        }
+    }
+    
+    @Test public void testBadFieldStatus () throws Exception {
+        // a bad field value is reported as a bad request whether or not documents are indexed in parallel
+        SolrIndexConfig config = SolrIndexConfig.registerIndexConfiguration(solrCore);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        SolrQueryRequest req = new LocalSolrQueryRequest(solrCore, new ModifiableSolrParams());
+        try {
+            assertEquals (ErrorCode.BAD_REQUEST.code, addBadDocument (new LuxUpdateProcessor(config, req, null, null, 0, null, false), req));
+            assertEquals (ErrorCode.BAD_REQUEST.code, addBadDocument (new LuxUpdateProcessor(config, req, null, executor, 4, null, false), req));
+        } finally {
+            req.close();
+            executor.shutdown();
+        }
+    }
+
+    private int addBadDocument (LuxUpdateProcessor processor, SolrQueryRequest req) throws Exception {
+        Collection<SolrInputDocument> docs = new ArrayList<SolrInputDocument> ();
+        addSolrDoc ("/bad", "<doc />", docs, "uri", "xml");
+        SolrInputDocument doc = docs.iterator().next();
+        doc.addField("count_i", "not a number");
+        AddUpdateCommand cmd = new AddUpdateCommand(req);
+        cmd.solrDoc = doc;
+        try {
+            processor.processAdd(cmd);
+            processor.finish();
+        } catch (SolrException e) {
+            return e.code();
+        }
+        fail ("no exception for a bad field value");
+        return 0;
+    }
+    
+    @Test public void testSkipUnchanged () throws Exception {
+        // core2 is configured to record document digests
+        NamedList<?> stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        long unchanged = (Long) stats.get("unchangedDocuments");
+        Collection<SolrInputDocument> docs = new ArrayList<SolrInputDocument> ();
+        addSolrDoc ("test1", "<doc><title id='1'>100</title><test>cat</test></doc>", docs, "uri", "xml");
+        addSolrDoc ("test2", "<doc><title id='2'>99</title><test>dog</test></doc>", docs, "uri", "xml");
+        solr.add (docs);
+        solr.commit();
+        stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        // test1 is unchanged; test2 has changed
+        assertEquals (unchanged + 1, stats.get("unchangedDocuments"));
+        assertQuery ("dog", "doc('test2')/doc/test/string()");
+        docs.clear();
+        addSolrDoc ("test2", "<doc><title id='2'>99</title><test>cat</test></doc>", docs, "uri", "xml");
+        solr.add (docs);
+        solr.commit();
+        assertQuery ("cat", "doc('test2')/doc/test/string()");
+        // the same xml, with a changed field, is not unchanged
+        stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        unchanged = (Long) stats.get("unchangedDocuments");
+        docs.clear();
+        addSolrDoc ("test2", "<doc><title id='2'>99</title><test>cat</test></doc>", docs, "uri", "xml");
+        docs.iterator().next().addField("string_s", "changed");
+        solr.add (docs);
+        solr.commit();
+        stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        assertEquals (unchanged, stats.get("unchangedDocuments"));
+        assertSolrQueryCount (1, "string_s:changed");
+    }
+    
     @Test public void testXPathSearch() throws Exception {
         // test search using standard search query handler, custom query parser
         assertQueryCount (1, 1, "element", "config", "//config");
@@ -75,6 +176,97 @@ public class LuxSolrTest extends BaseSolrTest {
         assertQueryCount(1, 0, "xs:double", "12.0", "xs:double(12.0)");
     }
     
+    @Test public void testCompiledQueryCache () throws Exception {
+        SolrIndexConfig config = (SolrIndexConfig) solrCore.getInfoRegistry().get(SolrIndexConfig.class.getName());
+        CompiledQueryCache cache = config.getCompiledQueryCache();
+        long hits = cache.getHits();
+        String query = "xs:double(13.0) (: testCompiledQueryCache :)";
+        assertQueryCount(1, 0, "xs:double", "13.0", query);
+        assertEquals (hits, cache.getHits());
+        // the second time around we re-use the compiled query
+        assertQueryCount(1, 0, "xs:double", "13.0", query);
+        assertEquals (hits + 1, cache.getHits());
+    }
+
+    @Test public void testImportedModuleChange () throws Exception {
+        SolrIndexConfig config = (SolrIndexConfig) solrCore.getInfoRegistry().get(SolrIndexConfig.class.getName());
+        ModuleCache moduleCache = config.getModuleCache();
+        long checkInterval = moduleCache.getCheckInterval();
+        File module = File.createTempFile("lux-test-module", ".xqy");
+        try {
+            moduleCache.setCheckInterval(0);
+            FileUtils.writeStringToFile(module, "module namespace m='http://luxdb.net/test/m'; declare function m:f() { 1 };");
+            String query = "import module namespace m='http://luxdb.net/test/m' at '" + module.toURI() + "'; m:f()";
+            assertQueryCount (1, 0, "xs:integer", "1", query);
+            // the compiled query is cached; it must be recompiled when the module it imports changes
+            FileUtils.writeStringToFile(module, "module namespace m='http://luxdb.net/test/m'; declare function m:f() { 2 };");
+            module.setLastModified(module.lastModified() + 2000);
+            assertQueryCount (1, 0, "xs:integer", "2", query);
+        } finally {
+            moduleCache.setCheckInterval(checkInterval);
+            module.delete();
+        }
+    }
+
+    @Test public void testConcurrentQueries () throws Exception {
+        // each thread's results must be serialized by its own serializer
+        final ArrayList<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i + 1;
+            threads[i] = new Thread () {
+                @Override public void run () {
+                    try {
+                        for (int j = 0; j < 10; j++) {
+                            assertQuery ("<title id=\"" + id + "\">" + (101 - id) + "</title>", "element",
+                                    "/doc/title[@id='" + id + "']");
+                        }
+                    } catch (Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (! failures.isEmpty()) {
+            throw new AssertionError (failures.get(0));
+        }
+    }
+
+    @Test public void testMaxResultSize () throws Exception {
+        SolrIndexConfig config = (SolrIndexConfig) solrCore.getInfoRegistry().get(SolrIndexConfig.class.getName());
+        ResultMemoryBudget budget = config.getResultMemoryBudget();
+        long truncations = budget.getTruncations();
+        SolrQuery q = new SolrQuery("/doc/title");
+        q.setRequestHandler(SOLR_QUERY_TYPE);
+        q.set(XQueryComponent.LUX_MAX_RESULT_SIZE, 100);
+        QueryResponse rsp = solr.query(q);
+        NamedList<?> results = (NamedList<?>) rsp.getResponse().get("xpath-results");
+        assertTrue (results.size() > 0);
+        assertTrue (results.size() < 10);
+        assertTrue (rsp.getResponse().get("xpath-error").toString().contains("Maximum result size exceeded"));
+        assertEquals (truncations + 1, budget.getTruncations());
+        assertEquals (0, budget.getReserved());
+    }
+
+    @Test public void testTimeAllowed () throws Exception {
+        // this query does a lot of searching without producing any results; it should be cut short
+        SolrQuery q = new SolrQuery("sum (for $i in 1 to 1000000 return lux:count(if ($i ge 0) then 'lux_elt_name:title' else 'lux_elt_name:doc'))");
+        q.setRequestHandler(SOLR_QUERY_TYPE);
+        q.setTimeAllowed(10);
+        long t0 = System.currentTimeMillis();
+        QueryResponse rsp = solr.query(q);
+        assertTrue (System.currentTimeMillis() - t0 < 5000);
+        assertEquals (Boolean.TRUE, rsp.getResponseHeader().get("partialResults"));
+        // the cancellation is not an error
+        assertNull (rsp.getResponse().get("xpath-error"));
+    }
+
     @Test public void testFirstPage () throws Exception {
         // returns only the page including the first 10 results
         assertQueryCount (10, 10, "document", "doc", "(/)[doc]");
@@ -110,6 +302,61 @@ public class LuxSolrTest extends BaseSolrTest {
         assertQueryCount (1, 0, "document", "doc", "doc('test50')");
         assertQueryCount (0, 0, "error", "document not found: /foo\n", "doc('/foo')");
     }
+
+    @Test public void testDocsFunction () throws Exception {
+        assertQueryCount (2, 0, "xs:string", "100", "lux:docs(('test1','test2'))/doc/title/string()");
+        assertQueryCount (0, 0, null, null, "lux:docs(())");
+    }
+
+    @Test public void testTinyBinaryResults () throws Exception {
+        SolrQuery q = new SolrQuery("(doc('test52'), doc('test52')/doc/title, 'x')");
+        q.setRequestHandler(SOLR_QUERY_TYPE);
+        q.set(XQueryComponent.LUX_XML_FORMAT, XQueryComponent.TINYBIN_FORMAT);
+        // as requested by SolrJ's HttpSolrServer
+        q.set("wt", "javabin");
+        QueryResponse rsp = solr.query(q);
+        NamedList<?> results = (NamedList<?>) rsp.getResponse().get("xpath-results");
+        assertEquals (3, results.size());
+        assertTrue (results.getVal(0) instanceof byte[]);
+        assertTrue (results.getVal(1) instanceof byte[]);
+        List<Object> items = new TinyBinaryResults(new Processor(false)).decode(results);
+        XdmNode doc = (XdmNode) items.get(0);
+        assertEquals (XdmNodeKind.DOCUMENT, doc.getNodeKind());
+        assertEquals ("49", doc.getStringValue().substring(0, 2));
+        XdmNode title = (XdmNode) items.get(1);
+        assertEquals ("title", title.getNodeName().getLocalName());
+        assertEquals ("52", title.getAttributeValue(new QName("id")));
+        assertEquals ("x", items.get(2));
+    }
+
+    @Test public void testTinyBinaryTextWriter () throws Exception {
+        // text response writers can't write tinybin results, so they receive serialized xml
+        for (String wt : new String[] { "xml", "json" }) {
+            SolrQuery q = new SolrQuery("doc('test52')/doc/title");
+            q.setRequestHandler(SOLR_QUERY_TYPE);
+            q.set(XQueryComponent.LUX_XML_FORMAT, XQueryComponent.TINYBIN_FORMAT);
+            q.set("wt", wt);
+            QueryResponse rsp = solr.query(q);
+            NamedList<?> results = (NamedList<?>) rsp.getResponse().get("xpath-results");
+            assertEquals (1, results.size());
+            assertEquals ("<title id=\"52\">49</title>", results.getVal(0));
+        }
+    }
+
+    @Test public void testDocumentCache () throws Exception {
+        RefCounted<SolrIndexSearcher> searcher = solrCore.getSearcher();
+        try {
+            SolrCache<?,?> cache = searcher.get().getCache(DocumentCache.CACHE_NAME);
+            assertNotNull (cache);
+            assertQueryCount (1, 0, "document", "doc", "doc('test51')");
+            long hits = (Long) cache.getStatistics().get("hits");
+            // the second time around, the parsed document is retrieved from the cache
+            assertQueryCount (1, 0, "document", "doc", "doc('test51')");
+            assertEquals (hits + 1, cache.getStatistics().get("hits"));
+        } finally {
+            searcher.decref();
+        }
+    }
     
     @Test public void testCollectionFunction () throws Exception {
         assertQueryCount (1, 1, "xs:anyURI", "lux:/src/test/resources/conf/schema.xml", "collection()[1]/base-uri()");
@@ -244,17 +491,30 @@ public class LuxSolrTest extends BaseSolrTest {
 
         assertQuery ("ok", "lux:search('<@modified:\"2000-01-01T01:02:03Z\"')/string()");
         // assertQuery ("ok", "lux:search('<@modified:[\"2000-01-01T01:02:03Z\" TO *]')/string()");
-        // bad date format
-        try {
-            assertQueryError("ok", "(lux:insert('/test', <doc modified='2000-01-01' />), lux:commit(), 'ok')");
-            assertFalse ("no exception thrown", true);
-        } catch (Exception ex) {
-            assertTrue (ex.getMessage().contains("2000-01-01"));
-        }
+        // bad date format: the document is indexed, and the invalid values (of modified_dt and modified_tdt) are counted
+        NamedList<?> stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        long invalid = (Long) stats.get("invalidFieldValues");
+        assertQuery ("ok", "(lux:insert('/test', <doc modified='2000-01-01' />), lux:commit(), 'ok')");
+        stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        assertEquals (invalid + 2, stats.get("invalidFieldValues"));
+        assertQuery ("doc", "name(doc('/test')/*)");
         
         assertQuery ("ok", "(lux:delete('/test'), lux:delete('/test2'), lux:commit(), 'ok')");
     }
     
+    @Test
+    public void testIntegerField () throws Exception {
+        NamedList<?> stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        long invalid = (Long) stats.get("invalidFieldValues");
+        assertQuery ("ok", "(lux:insert('/count1', <doc count='12' />), lux:insert('/count2', <doc count='3000000000' />), lux:commit(), 'ok')");
+        assertQuery ("12", "lux:key('count_ti', doc('/count1'))");
+        // too big for an int: not wrapped around to a negative value, but counted and skipped
+        stats = SolrIndexConfig.registerIndexConfiguration(solrCore).getStatistics();
+        assertEquals (invalid + 1, stats.get("invalidFieldValues"));
+        assertSolrQueryCount (0, "count_ti:[* TO 0]");
+        assertQuery ("ok", "(lux:delete('/count1'), lux:delete('/count2'), lux:commit(), 'ok')");
+    }
+    
     @Test
     public void testInsertRandomFields () throws Exception {
         // test inserting a document that doesn't have the Lux XML field
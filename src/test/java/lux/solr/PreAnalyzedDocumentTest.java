@@ -0,0 +1,214 @@
+package lux.solr;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class PreAnalyzedDocumentTest {
+
+    private final Analyzer analyzer = new WhitespaceAnalyzer(Version.LUCENE_46);
+
+    @Test
+    public void testStoredFields () throws IOException {
+        Document doc = new Document();
+        doc.add(new StoredField("string", "value"));
+        doc.add(new StoredField("int", 1));
+        doc.add(new StoredField("long", Long.MAX_VALUE));
+        doc.add(new StoredField("float", 1.5f));
+        doc.add(new StoredField("double", Math.PI));
+        doc.add(new StoredField("binary", new byte[] { 0, 1, -1 }));
+        List<IndexableField> fields = roundTrip (doc);
+        assertEquals (6, fields.size());
+        assertEquals ("string", fields.get(0).name());
+        assertEquals ("value", fields.get(0).stringValue());
+        assertEquals (Integer.valueOf(1), fields.get(1).numericValue());
+        assertEquals (Long.valueOf(Long.MAX_VALUE), fields.get(2).numericValue());
+        assertEquals (Float.valueOf(1.5f), fields.get(3).numericValue());
+        assertEquals (Double.valueOf(Math.PI), fields.get(4).numericValue());
+        assertEquals (new BytesRef(new byte[] { 0, 1, -1 }), fields.get(5).binaryValue());
+        for (IndexableField field : fields) {
+            assertTrue (field.fieldType().stored());
+            assertFalse (field.fieldType().indexed());
+        }
+    }
+
+    @Test
+    public void testTokenizedFields () throws IOException {
+        Document doc = new Document();
+        Field text = new TextField("text", "the quick  brown fox", Store.YES);
+        text.setBoost(2.0f);
+        doc.add(text);
+        doc.add(new StringField("id", "test1", Store.NO));
+        doc.add(new IntField("count", 42, Store.YES));
+        FieldType payloadType = new FieldType(TextField.TYPE_NOT_STORED);
+        payloadType.setStoreTermVectors(true);
+        payloadType.setStoreTermVectorPositions(true);
+        payloadType.setStoreTermVectorOffsets(true);
+        payloadType.setStoreTermVectorPayloads(true);
+        payloadType.freeze();
+        doc.add(new Field("payloads", new PayloadTokenStream("a", "b", "c", "d"), payloadType));
+
+        List<IndexableField> fields = roundTrip (doc);
+        // stored text, indexed text, indexed id, stored count, indexed count, indexed payloads
+        assertEquals (6, fields.size());
+
+        assertEquals ("the quick  brown fox", fields.get(0).stringValue());
+        IndexableField textField = fields.get(1);
+        assertEquals ("text", textField.name());
+        assertFalse (textField.fieldType().stored());
+        assertTrue (textField.fieldType().indexed());
+        assertEquals (2.0f, textField.boost(), 0);
+        assertEquals (Arrays.asList("the 1 0-3", "quick 1 4-9", "brown 1 11-16", "fox 1 17-20"), describe(textField.tokenStream(null)));
+
+        IndexableField idField = fields.get(2);
+        assertTrue (idField.fieldType().omitNorms());
+        assertEquals (IndexOptions.DOCS_ONLY, idField.fieldType().indexOptions());
+        assertEquals (Arrays.asList("test1 1 0-5"), describe(idField.tokenStream(null)));
+
+        assertEquals (Integer.valueOf(42), fields.get(3).numericValue());
+        // numeric terms are replayed as the bytes of each of their trie terms
+        assertEquals (describe(doc.getField("count").tokenStream(analyzer), false), describe(fields.get(4).tokenStream(null), false));
+
+        IndexableField payloadField = fields.get(5);
+        assertTrue (payloadField.fieldType().storeTermVectorPayloads());
+        assertTrue (payloadField.fieldType().storeTermVectorOffsets());
+        assertTrue (payloadField.fieldType().storeTermVectorPositions());
+        assertEquals (Arrays.asList("a 1 0-1 p0", "b 0 10-11", "c 2 20-21 p2", "d 1 30-31"), describe(payloadField.tokenStream(null)));
+        // the replayed tokens may be read again
+        assertEquals (4, describe(payloadField.tokenStream(null)).size());
+    }
+
+    @Test
+    public void testDocValues () throws IOException {
+        Document doc = new Document();
+        doc.add(new NumericDocValuesField("number", -7));
+        doc.add(new SortedDocValuesField("sorted", new BytesRef("abc")));
+        List<IndexableField> fields = roundTrip (doc);
+        assertEquals (2, fields.size());
+        assertEquals (DocValuesType.NUMERIC, fields.get(0).fieldType().docValueType());
+        assertEquals (-7L, fields.get(0).numericValue().longValue());
+        assertEquals (DocValuesType.SORTED, fields.get(1).fieldType().docValueType());
+        assertEquals (new BytesRef("abc"), fields.get(1).binaryValue());
+    }
+
+    @Test
+    public void testUnsupportedVersion () throws IOException {
+        byte[] bytes = PreAnalyzedDocument.serialize(new Document(), analyzer);
+        bytes[0] = 99;
+        try {
+            PreAnalyzedDocument.deserialize(bytes);
+            fail ("expected an exception");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    private List<IndexableField> roundTrip (Document doc) throws IOException {
+        return PreAnalyzedDocument.deserialize(PreAnalyzedDocument.serialize(doc, analyzer));
+    }
+
+    /**
+     * @return each token as its term, position increment, offsets and payload, if any
+     */
+    private static List<String> describe (TokenStream tokens) throws IOException {
+        return describe (tokens, true);
+    }
+
+    /**
+     * @param text whether the terms are text, rather than binary
+     */
+    private static List<String> describe (TokenStream tokens, boolean text) throws IOException {
+        ArrayList<String> result = new ArrayList<String>();
+        TermToBytesRefAttribute termAtt = tokens.getAttribute(TermToBytesRefAttribute.class);
+        PositionIncrementAttribute posIncAtt = tokens.addAttribute(PositionIncrementAttribute.class);
+        OffsetAttribute offsetAtt = tokens.addAttribute(OffsetAttribute.class);
+        PayloadAttribute payloadAtt = tokens.hasAttribute(PayloadAttribute.class) ? tokens.getAttribute(PayloadAttribute.class) : null;
+        BytesRef term = termAtt.getBytesRef();
+        tokens.reset();
+        while (tokens.incrementToken()) {
+            termAtt.fillBytesRef();
+            StringBuilder buf = new StringBuilder();
+            buf.append(text ? term.utf8ToString() : term.toString());
+            buf.append(' ').append(posIncAtt.getPositionIncrement());
+            buf.append(' ').append(offsetAtt.startOffset()).append('-').append(offsetAtt.endOffset());
+            BytesRef payload = payloadAtt == null ? null : payloadAtt.getPayload();
+            if (payload != null) {
+                buf.append(' ').append(payload.utf8ToString());
+            }
+            result.add(buf.toString());
+        }
+        tokens.end();
+        tokens.close();
+        return result;
+    }
+
+    /**
+     * Produces each of its terms in turn, at offsets 0, 10, 20..., with a payload on every other term, and
+     * the second term at the same position as the first, and the third two positions after that.
+     */
+    private static final class PayloadTokenStream extends TokenStream {
+
+        private final String[] terms;
+        private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+        private final PayloadAttribute payloadAtt = addAttribute(PayloadAttribute.class);
+        private int next;
+
+        PayloadTokenStream (String ... terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (next >= terms.length) {
+                return false;
+            }
+            clearAttributes();
+            termAtt.setEmpty().append(terms[next]);
+            posIncAtt.setPositionIncrement(next == 1 ? 0 : (next == 2 ? 2 : 1));
+            offsetAtt.setOffset(next * 10, next * 10 + terms[next].length());
+            payloadAtt.setPayload(next % 2 == 0 ? new BytesRef("p" + next) : null);
+            ++next;
+            return true;
+        }
+
+        @Override
+        public void reset () throws IOException {
+            super.reset();
+            next = 0;
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
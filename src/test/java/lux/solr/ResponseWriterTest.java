@@ -2,6 +2,7 @@ package lux.solr;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -117,6 +118,44 @@ public class ResponseWriterTest extends BaseSolrTest {
         assertEquals ("<html><head><title>Error</title></head><body><h1>Error</h1><code>An error occurred</code></body></html>", writer.getBuffer().toString());
     }
     
+    // serialized results are copied to the output stream as bytes
+    @Test
+    public void testBinaryResponse () throws Exception {
+        SolrIndexConfig config = (SolrIndexConfig) solrCore.getInfoRegistry().get(SolrIndexConfig.class.getName());
+        ResultBuffer buffer = config.newResultBuffer();
+        buffer.write("<test>Hello, W\u00f6rld</test>".getBytes("utf-8"));
+        ResultBuffer.Segment first = buffer.segmentFrom(0);
+        long start = buffer.size();
+        buffer.write("<test/>".getBytes("utf-8"));
+        ResultBuffer.Segment second = buffer.segmentFrom(start);
+        assertEquals ("<test/>", second.toString());
+        SolrQueryRequest request = makeRequest("lux.contentType", "text/xml");
+        request.getContext().put(XQueryComponent.RESULT_BUFFER, buffer);
+        SolrQueryResponse response = new SolrQueryResponse();
+        NamedList<Object> results = new NamedList<Object> ();
+        results.add("element", first);
+        results.add("element", second);
+        response.add("xpath-results", results);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        responseWriter.write(out, request, response);
+        assertEquals ("<results><test>Hello, W\u00f6rld</test><test/></results>", out.toString("utf-8"));
+        assertNull (request.getContext().get(XQueryComponent.RESULT_BUFFER));
+        assertEquals (0, buffer.size());
+    }
+    
+    // results are pulled from the query evaluation as they are written
+    @Test
+    public void testStreamingResponse () throws Exception {
+        SolrQueryRequest request = makeRequest("q", "(1, 2, <test>Hello, World</test>)", "wt", "lux",
+                "lux.contentType", "text/xml", "lux.streaming", "true");
+        SolrQueryResponse response = new SolrQueryResponse();
+        solrCore.execute(solrCore.getRequestHandler(SOLR_QUERY_TYPE), request, response);
+        assertTrue (response.getValues().get("xpath-results") instanceof XQueryResultStream);
+        responseWriter.write(writer, request, response);
+        request.close();
+        assertEquals ("<results>12<test>Hello, World</test>\n</results>", writer.getBuffer().toString());
+    }
+    
     private String writeResponse (SolrQueryRequest request, Object ... params) throws IOException {
         SolrQueryResponse response = new SolrQueryResponse();
         NamedList<Object> results = new NamedList<Object> ();
@@ -1,5 +1,13 @@
 package lux.solr;
 
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.solr.common.util.NamedList;
 import org.junit.Test;
 
 public class SolrDocWriterTest extends BaseSolrTest {
@@ -27,6 +35,43 @@ public class SolrDocWriterTest extends BaseSolrTest {
         assertQuery (0L, "count(collection())");
     }
     
+    @Test
+    public void testCoalesceCommits () throws Exception {
+        CommitScheduler scheduler = SolrIndexConfig.registerIndexConfiguration(solrCore).getCommitScheduler();
+        NamedList<?> stats = scheduler.getStatistics();
+        long requested = (Long) stats.get("requested");
+        long performed = (Long) stats.get("performed");
+        scheduler.setWindow(500);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int i = 0; i < 4; i++) {
+                final int id = i + 1;
+                futures[i] = executor.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        assertQuery ("OK", "('OK',lux:insert('/doc/" + id + "'," + makeTestDocument(id) + "),lux:commit())");
+                        return null;
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // wait for the window to close
+            scheduler.commit(false, true);
+        } finally {
+            scheduler.setWindow(0);
+            executor.shutdown();
+        }
+        assertQuery (4L, "count(collection())");
+        stats = scheduler.getStatistics();
+        assertEquals (requested + 5, stats.get("requested"));
+        // at least some of the requests arrived within the same window
+        assertTrue ((Long) stats.get("performed") - performed < 5);
+        assertQuery ("OK", "('OK',lux:delete('lux:/'),lux:commit())");
+    }
+    
     private String makeTestDocument(int i) {
         return "<doc><title id='" + i + "'>" + (101-i) + "</title><test>cat</test></doc>";
     }
@@ -1,6 +1,9 @@
 package lux.solr;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.solr.client.solrj.embedded.JettySolrRunner;
 import org.apache.solr.client.solrj.embedded.LuxJettySolrRunner;
@@ -79,6 +82,47 @@ public class ZkCloudTest extends AbstractFullDistribZkTestBase {
         query ("qt", "/xquery", "q", "(lux:commit(), count(collection()))");
         verifyShardCounts(0);
         
+        // enough inserts to be sent in several batches, interleaved with deletes that must be applied in order
+        String addMany = "for $i in 1 to 250 " +
+                "return (lux:insert(concat('/doc/', $i), <doc>{$i}</doc>), if ($i mod 50 eq 0) then lux:delete(concat('/doc/', $i)) else ())";
+        query ("qt", "/xquery", "q", addMany);
+        query ("qt", "/xquery", "q", "(lux:commit(), count(collection()))");
+        verifyShardCounts(245);
+
+        // sorted results spanning several batches, read using a cursor, with some documents missing the
+        // (sortMissingLast) sort field
+        query ("qt", "/xquery", "q", "(lux:delete('lux:/'), lux:commit(), count(collection()))");
+        String addSorted = "for $i in 1 to 100 return lux:insert(concat('/sorted/', $i), " +
+                "if ($i mod 3 eq 0) then <doc n='{$i}' /> else <doc n='{$i}' category='{format-number($i, \"000\")}' />)";
+        query ("qt", "/xquery", "q", addSorted);
+        query ("qt", "/xquery", "q", "(lux:commit(), count(collection()))");
+        verifyShardCounts(100);
+        ArrayList<String> ascending = new ArrayList<String>();
+        ArrayList<String> descending = new ArrayList<String>();
+        for (int i = 1; i <= 100; i++) {
+            if (i % 3 != 0) {
+                ascending.add(String.format("%03d", i));
+                descending.add(0, String.format("%03d", i));
+            }
+        }
+        for (int i = 0; i < 33; i++) {
+            ascending.add("");
+            descending.add("");
+        }
+        verifySortedCategories ("category_s", ascending);
+        verifySortedCategories ("category_s descending", descending);
+    }
+
+    private void verifySortedCategories (String sort, List<String> expected) throws Exception {
+        String xquery = "string-join(for $doc in lux:search('*:*', '" + sort + "') return string($doc/doc/@category), ',')";
+        // compare with the unpaged results of the control
+        query ("qt", "/xquery", "q", xquery);
+        QueryResponse rsp = cloudClient.query(params("qt", "/xquery", "q", xquery));
+        NamedList<?> xpathResults = (NamedList<?>) rsp.getResponse().get("xpath-results");
+        assertNotNull ("no xquery results in response: " + rsp.getResponse(), xpathResults);
+        String[] categories = xpathResults.getVal(0).toString().split(",", -1);
+        assertEquals (expected.size(), categories.length);
+        assertEquals (expected, Arrays.asList(categories));
     }
 
     private void verifyShardCounts(int expectedTotal) throws Exception {